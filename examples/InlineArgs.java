@@ -0,0 +1,30 @@
+class InlineArgs {
+    public static void main(String[] a) {
+        System.out.println(new Args().run());
+    }
+}
+
+class Args {
+    public int sub(int p, int q) {
+        return p - q;
+    }
+
+    public int run() {
+        int x;
+        int r;
+        int i;
+
+        // the arguments read x before a later one assigns it
+        x = 10;
+        r = 0;
+        i = 0;
+        while (i < 2) {
+            r = r + this.sub(x, x = 3);
+            i = i + 1;
+        }
+        if (r < 100) {
+            r = r + this.sub(x, x = 1);
+        }
+        return r;
+    }
+}
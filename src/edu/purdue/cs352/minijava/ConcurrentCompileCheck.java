@@ -0,0 +1,164 @@
+package edu.purdue.cs352.minijava;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.purdue.cs352.minijava.backend.*;
+import edu.purdue.cs352.minijava.optimizer.*;
+import edu.purdue.cs352.minijava.parser.*;
+import edu.purdue.cs352.minijava.ast.*;
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* A stress check that compilations are independent and deterministic: every
+ * file is compiled once on its own, then many times at once on a thread pool
+ * (alternately with each method as a separate task as -p does), and each
+ * result's SSA and MIPS must be identical to the first. Exits with status 1
+ * on any difference. */
+public class ConcurrentCompileCheck {
+    public static void usage() {
+        System.out.println("Use: mjcheck-concurrent [-r rounds] [-t threads] [-O] <input filenames>");
+    }
+
+    // what compiling a program gave: its SSA (after type checking and
+    // optimizing) and its MIPS
+    private static class Output {
+        final String ssa, mips;
+
+        Output(String ssa, String mips) {
+            this.ssa = ssa;
+            this.mips = mips;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean optimize = false;
+        List<String> fnames = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-")) {
+                if ((arg.equals("-r") || arg.equals("-t")) && i + 1 < args.length) {
+                    int n;
+                    try {
+                        n = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException ex) {
+                        usage();
+                        return;
+                    }
+                    if (n < 1) {
+                        usage();
+                        return;
+                    }
+                    if (arg.equals("-r"))
+                        rounds = n;
+                    else
+                        threads = n;
+                } else if (arg.equals("-O")) {
+                    optimize = true;
+                } else {
+                    usage();
+                    return;
+                }
+
+            } else {
+                fnames.add(arg);
+
+            }
+        }
+        if (fnames.isEmpty()) {
+            usage();
+            return;
+        }
+
+        // the sources, and what each compiles to on its own
+        final Map<String, byte[]> sources = new LinkedHashMap<String, byte[]>();
+        Map<String, Output> expected = new HashMap<String, Output>();
+        for (String fname : fnames) {
+            byte[] source;
+            try {
+                source = readFile(fname);
+            } catch (IOException ex) {
+                System.out.println("File " + fname + " not found.");
+                return;
+            }
+            sources.put(fname, source);
+            expected.put(fname, compile(source, optimize, null));
+        }
+
+        // then all of them, round after round, all at once
+        final boolean opt = optimize;
+        final ForkJoinPool methodPool = new ForkJoinPool();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<String> names = new ArrayList<String>();
+        List<Future<Output>> results = new ArrayList<Future<Output>>();
+        for (int r = 0; r < rounds; r++) {
+            for (final String fname : sources.keySet()) {
+                final boolean perMethod = (r % 2) == 1;
+                names.add(fname);
+                results.add(executor.submit(new Callable<Output>() {
+                    public Output call() throws ParseException {
+                        return compile(sources.get(fname), opt, perMethod ? methodPool : null);
+                    }
+                }));
+            }
+        }
+
+        int mismatches = 0;
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                String fname = names.get(i);
+                Output got = results.get(i).get();
+                Output want = expected.get(fname);
+                if (!got.ssa.equals(want.ssa)) {
+                    System.out.println(fname + ": SSA differs in compilation " + i);
+                    mismatches++;
+                } else if (!got.mips.equals(want.mips)) {
+                    System.out.println(fname + ": MIPS differs in compilation " + i);
+                    mismatches++;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            methodPool.shutdown();
+        }
+
+        System.out.println(results.size() + " compilations of " + sources.size() + " files on "
+                + threads + " threads, " + mismatches + " mismatches");
+        if (mismatches > 0)
+            System.exit(1);
+    }
+
+    // compile this source, with each method as a separate task if there's a
+    // pool
+    private static Output compile(byte[] source, boolean optimize, ForkJoinPool pool) throws ParseException {
+        Program prog = new ParserAST(new ByteArrayInputStream(source)).Program();
+        SSAProgram sprog = pool != null ? SSACompiler.compile(prog, pool) : SSACompiler.compile(prog);
+
+        TypeChecker tc = new TypeChecker(sprog);
+        tc.typeCheck();
+        if (optimize)
+            Optimizer.optimize(sprog, pool);
+
+        // the backend allocates registers in the SSA, so print it first
+        String ssa = sprog.toString();
+        String mips = AsmMIPS.compile(sprog, RegisterAllocator.Strategy.GRAPH_COLORING, pool);
+        return new Output(ssa, mips);
+    }
+
+    private static byte[] readFile(String fname) throws IOException {
+        InputStream in = new FileInputStream(fname);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
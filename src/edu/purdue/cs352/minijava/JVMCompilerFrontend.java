@@ -0,0 +1,87 @@
+package edu.purdue.cs352.minijava;
+
+import java.io.*;
+import java.util.*;
+
+import edu.purdue.cs352.minijava.backend.*;
+import edu.purdue.cs352.minijava.parser.*;
+import edu.purdue.cs352.minijava.ast.*;
+import edu.purdue.cs352.minijava.ssa.*;
+
+// A simple frontend for the JVM backend: compiles and runs, or with -d writes out the class files
+public class JVMCompilerFrontend {
+    public static void usage() {
+        System.out.println("Use: mjcompiler-jvm [-d <output directory>] <input filename>");
+    }
+
+    public static void main(String[] args) {
+        String fname = null;
+        String outDir = null;
+        ParserAST parser;
+        Program prog;
+
+        for (int ai = 0; ai < args.length; ai++) {
+            String arg = args[ai];
+            if (arg.startsWith("-")) {
+                if (arg.equals("-d") && ai + 1 < args.length) {
+                    outDir = args[++ai];
+                } else {
+                    usage();
+                    return;
+                }
+
+            } else if (fname == null) {
+                fname = arg;
+
+            } else {
+                usage();
+                return;
+
+            }
+        }
+        if (fname == null) {
+            usage();
+            return;
+        }
+
+        try {
+            parser = new ParserAST(new java.io.FileInputStream(fname));
+        } catch (java.io.FileNotFoundException ex) {
+            System.out.println("File " + fname + " not found.");
+            return;
+        }
+
+        try {
+            prog = parser.Program();
+        } catch (ParseException ex) {
+            System.out.println(ex.getMessage());
+            return;
+        }
+
+        SSAProgram sprog = SSACompiler.compile(prog);
+
+        TypeChecker tc = new TypeChecker(sprog);
+        tc.typeCheck();
+
+        if (outDir == null) {
+            AsmJVM.run(sprog);
+            return;
+        }
+
+        for (Map.Entry<String, byte[]> cl : AsmJVM.compile(sprog).entrySet()) {
+            File out = new File(outDir, cl.getKey().replace('.', File.separatorChar) + ".class");
+            out.getParentFile().mkdirs();
+            try {
+                FileOutputStream fos = new FileOutputStream(out);
+                try {
+                    fos.write(cl.getValue());
+                } finally {
+                    fos.close();
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not write " + out + ": " + ex.getMessage());
+                return;
+            }
+        }
+    }
+}
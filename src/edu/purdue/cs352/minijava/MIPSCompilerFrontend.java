@@ -1,6 +1,9 @@
 package edu.purdue.cs352.minijava;
 
+import java.util.concurrent.ForkJoinPool;
+
 import edu.purdue.cs352.minijava.backend.*;
+import edu.purdue.cs352.minijava.optimizer.*;
 import edu.purdue.cs352.minijava.parser.*;
 import edu.purdue.cs352.minijava.ast.*;
 import edu.purdue.cs352.minijava.ssa.*;
@@ -8,7 +11,7 @@ import edu.purdue.cs352.minijava.ssa.*;
 // A simple frontend for the SSACompiler
 public class MIPSCompilerFrontend {
     public static void usage() {
-        System.out.println("Use: mjcompiler-mips <input filename>");
+        System.out.println("Use: mjcompiler-mips [-p] [-l] [-O] <input filename>");
     }
 
     public static void main(String[] args) {
@@ -16,11 +19,22 @@ public class MIPSCompilerFrontend {
         ParserAST parser;
         Program prog;
         MIPSCompilerFrontend fe;
+        boolean parallel = false;
+        boolean optimize = false;
+        RegisterAllocator.Strategy strategy = RegisterAllocator.Strategy.GRAPH_COLORING;
 
         for (String arg : args) {
             if (arg.startsWith("-")) {
-                usage();
-                return;
+                if (arg.equals("-p")) {
+                    parallel = true;
+                } else if (arg.equals("-l")) {
+                    strategy = RegisterAllocator.Strategy.LINEAR_SCAN;
+                } else if (arg.equals("-O")) {
+                    optimize = true;
+                } else {
+                    usage();
+                    return;
+                }
 
             } else if (fname == null) {
                 fname = arg;
@@ -50,11 +64,18 @@ public class MIPSCompilerFrontend {
             return;
         }
 
-        SSAProgram sprog = SSACompiler.compile(prog);
+        // -p compiles each method as a separate task
+        ForkJoinPool pool = parallel ? new ForkJoinPool() : null;
+        SSAProgram sprog = parallel ? SSACompiler.compile(prog, pool) : SSACompiler.compile(prog);
 
         TypeChecker tc = new TypeChecker(sprog);
         tc.typeCheck();
 
-        System.out.println(AsmMIPS.compile(sprog));
+        // -O optimizes the SSA before it goes to the backend
+        if (optimize)
+            Optimizer.optimize(sprog, pool);
+
+        // -l allocates registers by linear scan
+        System.out.println(AsmMIPS.compile(sprog, strategy, pool));
     }
 }
@@ -1,21 +1,26 @@
 package edu.purdue.cs352.minijava;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import edu.purdue.cs352.minijava.ast.*;
 import edu.purdue.cs352.minijava.ssa.*;
 
 public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 	
-	// The method body currently being compiled.
-	static List<SSAStatement> body = null;
+	// The method body currently being compiled. Each method is compiled by
+	// its own SSACompiler, so methods can be compiled in parallel.
+	private List<SSAStatement> body = new ArrayList<SSAStatement>();
 
 	// local vars in a method, which includes declard local vars and method params
-	static Map<String, SSAStatement> localVars = new HashMap<String, SSAStatement>();
+	private Map<String, SSAStatement> localVars = new HashMap<String, SSAStatement>();
 	
 	// used to store the SSA-pointers of local vars before they are assigned a new
 	// value inside an if/else/while body.  Used to generate unify-SSAStatements.
-	static Map<String, SSAStatement> localVarsPreAssign = null;
+	private Map<String, SSAStatement> localVarsPreAssign = null;
+
+	// labels are numbered per method, so they don't depend on the AST objects
+	private int nextLabel = 0;
 	
 	
 	public static SSAProgram compile(Program prog) {
@@ -28,6 +33,35 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 		return new SSAProgram(main, classes);
 	}
 
+	// compile every method as a separate task in this pool
+	public static SSAProgram compile(Program prog, ForkJoinPool pool) {
+		final Main mainAST = prog.getMain();
+		List<Callable<SSAMethod>> tasks = new ArrayList<Callable<SSAMethod>>();
+		tasks.add(new Callable<SSAMethod>() {
+			public SSAMethod call() { return compile(mainAST); }
+		});
+		for (ClassDecl cl : prog.getClasses()) {
+			for (final MethodDecl md : cl.getMethods()) {
+				tasks.add(new Callable<SSAMethod>() {
+					public SSAMethod call() { return compile(md); }
+				});
+			}
+		}
+
+		// then put the classes back together in order
+		Iterator<SSAMethod> methods = ParallelMethods.run(pool, tasks).iterator();
+		SSAMethod main = methods.next();
+		List<SSAClass> classes = new ArrayList<SSAClass>();
+		for (ClassDecl cl : prog.getClasses()) {
+			List<SSAMethod> clMethods = new ArrayList<SSAMethod>();
+			for (int i = 0; i < cl.getMethods().size(); i++)
+				clMethods.add(methods.next());
+			classes.add(new SSAClass(cl, clMethods));
+		}
+
+		return new SSAProgram(main, classes);
+	}
+
 	public static SSAClass compile(ClassDecl cl) {
 		List<SSAMethod> methods = new ArrayList<SSAMethod>();
 		for (MethodDecl md : cl.getMethods())
@@ -38,23 +72,17 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 	public static SSAMethod compile(Main main) {
 		SSACompiler compiler = new SSACompiler();
 		
-		// start a new body of SSAStatements
-		body = new ArrayList<SSAStatement>();
-		
 		// there's only a body
 		main.getBody().accept(compiler);
 		
-		return new SSAMethod(main, body);//compiler.getBody());
+		return new SSAMethod(main, compiler.getBody());
 	}
 
 	
 	public static SSAMethod compile(MethodDecl method) {
 		SSACompiler compiler = new SSACompiler();
-
-		// reset the SSAStatements, params, localvars for this method body?
-		body = new ArrayList<SSAStatement>();
-		localVars.clear();
-		//localVarsPreAssign = null;	// shouldn't be necessary
+		List<SSAStatement> body = compiler.body;
+		Map<String, SSAStatement> localVars = compiler.localVars;
 
 		
 		// add parameters
@@ -116,7 +144,7 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 		
 		// return a new SSAMethod with the method ASTNode
 		// and the SSAStatements for this method
-		SSAMethod ret = new SSAMethod(method, body);//compiler.getBody());
+		SSAMethod ret = new SSAMethod(method, body);
 		return ret;
 	}
 
@@ -132,7 +160,7 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 		
 	
 	// assumes varName is a valid local var
-	private static void updateLocalVarSSA(String varName, SSAStatement newSSA) {
+	private void updateLocalVarSSA(String varName, SSAStatement newSSA) {
 		
 		// see if localVarsPreAssign exists and does not contain this var.
 		// if so, add it and its old SSA-pointer to it
@@ -334,7 +362,7 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 	@Override
 	public Object visit(IfStatement exp) {
 		 
-		int ifID = exp.hashCode();
+		int ifID = nextLabel++;
  		String elseLabel = "lif_"+ifID+"_else";
  		String doneLabel = "lif_"+ifID+"_done";
 		
@@ -547,7 +575,7 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 	@Override
 	public Object visit(WhileStatement exp) {
  
- 		int whileID = exp.hashCode();
+ 		int whileID = nextLabel++;
  		String startLabel = "lwhile_"+whileID+"_start";
  		String endLabel = "lwhile_"+whileID+"_end";
  		
@@ -591,7 +619,7 @@ public class SSACompiler extends ASTVisitor.SimpleASTVisitor {
 	}
 	
 	
-	private static void moveUp(ASTNode ast, Map<String, SSAStatement> prevLocalVarsPreAssign) {
+	private void moveUp(ASTNode ast, Map<String, SSAStatement> prevLocalVarsPreAssign) {
 
 		// move one level up: restore condVarsPreAssign to be the current one
 		Map<String, SSAStatement> oldSSAs = localVarsPreAssign;
@@ -1,15 +1,18 @@
 package edu.purdue.cs352.minijava;
 
+import java.util.concurrent.ForkJoinPool;
+
 //import edu.purdue.cs352.minijava.backend.*;
 import edu.purdue.cs352.minijava.parser.*;
 import edu.purdue.cs352.minijava.ast.*;
 import edu.purdue.cs352.minijava.backend.*;
+import edu.purdue.cs352.minijava.optimizer.*;
 import edu.purdue.cs352.minijava.ssa.*;
 
 // A simple frontend for the SSACompiler
 public class SSACompilerFrontend {
 	public static void usage() {
-		System.out.println("Use: mjcompiler-ssa [-t] [-r] <input filename>");
+		System.out.println("Use: mjcompiler-ssa [-t] [-O] [-r] [-l] [-p] [-v] <input filename>");
 	}
 
 	public static void main(String[] args) {
@@ -18,14 +21,30 @@ public class SSACompilerFrontend {
 		Program prog;
 		//SSACompilerFrontend fe;
 		boolean typeCheck = false;
+		boolean optimize = false;
 		boolean regAlloc = false;
+		boolean parallel = false;
+		boolean verbose = false;
+		RegisterAllocator.Strategy strategy = RegisterAllocator.Strategy.GRAPH_COLORING;
 
 		for (String arg : args) {
 			if (arg.startsWith("-")) {
 				if (arg.equals("-t")) {
 					typeCheck = true;
+				} else if (arg.equals("-O")) {
+					optimize = true;
 				} else if (arg.equals("-r")) {
 					regAlloc = true;
+				} else if (arg.equals("-l")) {
+					// implies -r
+					regAlloc = true;
+					strategy = RegisterAllocator.Strategy.LINEAR_SCAN;
+				} else if (arg.equals("-p")) {
+					parallel = true;
+				} else if (arg.equals("-v")) {
+					// implies -r
+					regAlloc = true;
+					verbose = true;
 				} else {
 					usage();
 					return;
@@ -59,15 +78,34 @@ public class SSACompilerFrontend {
 			return;
 		}
 
-		SSAProgram sprog = SSACompiler.compile(prog);
+		// -p compiles (and allocates) each method as a separate task
+		ForkJoinPool pool = parallel ? new ForkJoinPool() : null;
+		SSAProgram sprog = parallel ? SSACompiler.compile(prog, pool) : SSACompiler.compile(prog);
 
 		if (typeCheck) {
 			TypeChecker tc = new TypeChecker(sprog);
 			tc.typeCheck();
 		}
+
+		if (optimize) {
+			java.util.List<Optimizer.Stats> stats = Optimizer.optimize(sprog, pool);
+
+			// -v reports what optimizing each method did
+			if (verbose) {
+				for (Optimizer.Stats s : stats)
+					System.err.println(s);
+			}
+		}
 		
 		if (regAlloc) {
-			RegisterAllocator.alloc(sprog, 15);
+			java.util.List<RegisterAllocator.Stats> stats =
+				RegisterAllocator.alloc(sprog, 15, strategy, pool);
+
+			// -v reports what allocating each method took
+			if (verbose) {
+				for (RegisterAllocator.Stats s : stats)
+					System.err.println(s);
+			}
 		}
 
 		System.out.println(sprog);
@@ -0,0 +1,476 @@
+package edu.purdue.cs352.minijava.backend;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+import edu.purdue.cs352.minijava.types.*;
+
+import static edu.purdue.cs352.minijava.backend.ClassFile.*;
+
+/* Compiles a type-checked SSAProgram to JVM classes, which can be loaded and
+ * run in-process so that the JVM's own JIT does the real work. Each SSAClass
+ * becomes a JVM class in the package mj, with its fields and methods as JVM
+ * fields and virtual methods, and main becomes the static main method of
+ * mj.$Main. int[] is a JVM int[].
+ *
+ * Every group of unified statements is one JVM local, and every statement
+ * loads its operands from locals and stores its result to its own, leaving
+ * the rest to the JIT. */
+public class AsmJVM {
+	// the JVM package of compiled classes, and the class holding main
+	private static final String PACKAGE = "mj/";
+	public static final String MAIN_CLASS = "mj.$Main";
+
+	private SSAProgram prog;
+
+	// the method being compiled
+	private ClassFile cf;
+	private ClassFile.Code code;
+	private Map<SSAStatement, Integer> locals;
+	private Map<String, ClassFile.Label> labels;
+
+	private AsmJVM(SSAProgram prog) {
+		this.prog = prog;
+	}
+
+	// compile the program, returning class files by binary class name
+	public static Map<String, byte[]> compile(SSAProgram prog) {
+		AsmJVM compiler = new AsmJVM(prog);
+		Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+		// first compile main
+		ClassFile main = new ClassFile(MAIN_CLASS.replace('.', '/'), "java/lang/Object");
+		compiler.compile(main, null, prog.getMain());
+		classes.put(MAIN_CLASS, main.toByteArray());
+
+		// then compile all the classes
+		for (SSAClass cl : prog.getClassesOrdered()) {
+			String name = className(cl.getASTNode().getName());
+			classes.put(name.replace('/', '.'), compiler.compile(cl));
+		}
+
+		return classes;
+	}
+
+	// compile and run the program
+	public static void run(SSAProgram prog) {
+		Loader loader = new Loader(compile(prog));
+		java.lang.reflect.Method main;
+		try {
+			main = loader.loadClass(MAIN_CLASS).getMethod("main", String[].class);
+		} catch (ReflectiveOperationException ex) {
+			throw new Error(ex);
+		}
+
+		try {
+			main.invoke(null, (Object) new String[0]);
+		} catch (InvocationTargetException ex) {
+			// errors in the program are the program's, not ours
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new Error(cause);
+		} catch (IllegalAccessException ex) {
+			throw new Error(ex);
+		}
+	}
+
+	// loads the classes of one compiled program
+	private static class Loader extends ClassLoader {
+		private final Map<String, byte[]> classes;
+
+		Loader(Map<String, byte[]> classes) {
+			super(AsmJVM.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null) throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	// compile this class
+	private byte[] compile(SSAClass cl) {
+		String sup = cl.getASTNode().getExtends();
+		cf = new ClassFile(className(cl.getASTNode().getName()),
+			className(sup == null ? "Object" : sup));
+
+		for (SSAField field : cl.getFieldsOrdered())
+			cf.addField(field.getName(), descriptor(field.getType()));
+
+		// the only constructor just calls the superclass's
+		ClassFile.Code init = cf.addMethod(ACC_PUBLIC, "<init>", "()V");
+		init.local(ALOAD, 0);
+		init.op2(INVOKESPECIAL, cf.methodref(className(sup == null ? "Object" : sup), "<init>", "()V"));
+		init.op(RETURN);
+		init.setMaxs(1, 1);
+
+		for (SSAMethod m : cl.getMethodsOrdered())
+			compile(cf, cl, m);
+
+		return cf.toByteArray();
+	}
+
+	// compile this method (cl is null for main)
+	private void compile(ClassFile cf, SSAClass cl, SSAMethod m) {
+		this.cf = cf;
+		List<SSAStatement> body = m.getBody();
+
+		if (cl == null) {
+			code = cf.addMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V");
+		} else {
+			code = cf.addMethod(ACC_PUBLIC, m.getMethod().getName(), descriptor(m));
+		}
+
+		// this (or main's arguments) and the parameters come first
+		int firstLocal = 1 + (cl == null ? 0 : m.getParamTypes().size());
+		int numLocals = assignLocals(body, firstLocal);
+
+		labels = new HashMap<String, ClassFile.Label>();
+		int maxArgs = 0;
+		SSAStatement last = null;
+		for (SSAStatement s : body) {
+			if (s.getOp() == SSAStatement.Op.Call)
+				maxArgs = Math.max(maxArgs, ((SSACall) s.getSpecial()).getArgs().size());
+			compile(s);
+			last = s;
+		}
+
+		// main just runs off its end
+		if (last == null || last.getOp() != SSAStatement.Op.Return)
+			code.op(RETURN);
+
+		// calls need the target and all arguments, IndexAssg three values
+		code.setMaxs(Math.max(3, maxArgs + 1), firstLocal + numLocals);
+	}
+
+	/* Give every value-producing statement a local, sharing one between
+	 * all the statements of a unified group. Returns the number of locals
+	 * used. */
+	private int assignLocals(List<SSAStatement> body, int firstLocal) {
+		SSAStatement[] stmts = body.toArray(new SSAStatement[0]);
+		Map<SSAStatement, Integer> indices = new IdentityHashMap<SSAStatement, Integer>();
+		for (int i = 0; i < stmts.length; i++)
+			indices.put(stmts[i], i);
+
+		int[] group = new int[stmts.length];
+		for (int i = 0; i < stmts.length; i++)
+			group[i] = i;
+		for (int i = 0; i < stmts.length; i++) {
+			SSAStatement s = stmts[i];
+			if (s.getOp() == SSAStatement.Op.Unify || s.getOp() == SSAStatement.Op.Alias) {
+				join(group, i, index(indices, s.getLeft()));
+				if (s.getRight() != null)
+					join(group, i, index(indices, s.getRight()));
+			}
+		}
+
+		locals = new IdentityHashMap<SSAStatement, Integer>();
+		int[] groupLocal = new int[stmts.length];
+		Arrays.fill(groupLocal, -1);
+		int numLocals = 0;
+		for (int i = 0; i < stmts.length; i++) {
+			StaticType type = stmts[i].getType();
+			if (type == null)
+				throw new Error("Statement " + stmts[i].getIndex() + " has no type; the JVM backend needs a type-checked program.");
+			if (type instanceof VoidType) continue;
+
+			int g = find(group, i);
+			if (groupLocal[g] < 0)
+				groupLocal[g] = firstLocal + numLocals++;
+			locals.put(stmts[i], groupLocal[g]);
+		}
+		return numLocals;
+	}
+
+	// compile this statement
+	private void compile(SSAStatement s) {
+		SSAStatement left = s.getLeft();
+		SSAStatement right = s.getRight();
+		Object special = s.getSpecial();
+
+		switch (s.getOp()) {
+			// these share their operands' local
+			case Unify:
+			case Alias:
+				break;
+
+			case This:
+				code.local(ALOAD, 0);
+				store(s);
+				break;
+
+			case Parameter:
+				// parameters are the locals following this
+				code.local(isInt(s) ? ILOAD : ALOAD, 1 + ((Integer) special).intValue());
+				store(s);
+				break;
+
+			case Arg:
+			case VarAssg:
+				load(left);
+				store(s);
+				break;
+
+			case Null:
+				code.op(isInt(s) ? ICONST_0 : ACONST_NULL);
+				store(s);
+				break;
+
+			case Int:
+				code.iconst(((Integer) special).intValue());
+				store(s);
+				break;
+
+			case Boolean:
+				code.iconst(((Boolean) special).booleanValue() ? 1 : 0);
+				store(s);
+				break;
+
+			case NewObj:
+			{
+				String cname = className((String) special);
+				code.op2(NEW, cf.cls(cname));
+				code.op(DUP);
+				code.op2(INVOKESPECIAL, cf.methodref(cname, "<init>", "()V"));
+				store(s);
+				break;
+			}
+
+			case NewIntArray:
+				load(left);
+				code.op1(NEWARRAY, T_INT);
+				store(s);
+				break;
+
+			case Label:
+				code.mark(label((String) special));
+				break;
+
+			case Goto:
+				code.jump(GOTO, label((String) special));
+				break;
+
+			case Branch:
+				load(left);
+				code.jump(IFNE, label((String) special));
+				break;
+
+			case NBranch:
+				load(left);
+				code.jump(IFEQ, label((String) special));
+				break;
+
+			case Call:
+			{
+				SSACall call = (SSACall) special;
+				String cname = objectType(left).getName();
+				SSAMethod target = prog.getClass(cname).getMethod(prog, call.getMethod());
+				if (target == null)
+					throw new Error("Class " + cname + " has no method " + call.getMethod());
+
+				load(left);
+				for (SSAStatement arg : call.getArgs())
+					load(arg);
+				code.op2(INVOKEVIRTUAL, cf.methodref(className(cname), call.getMethod(), descriptor(target)));
+				store(s);
+				break;
+			}
+
+			case Print:
+				code.op2(GETSTATIC, cf.fieldref("java/lang/System", "out", "Ljava/io/PrintStream;"));
+				load(left);
+				code.op2(INVOKEVIRTUAL, cf.methodref("java/io/PrintStream", "println", "(I)V"));
+				break;
+
+			case Return:
+				load(left);
+				code.op(isInt(left) ? IRETURN : ARETURN);
+				break;
+
+			case Member:
+			{
+				String cname = objectType(left).getName();
+				load(left);
+				if (cname.equals("int[]") && special.equals("length")) {
+					code.op(ARRAYLENGTH);
+				} else {
+					code.op2(GETFIELD, fieldref(cname, (String) special));
+				}
+				store(s);
+				break;
+			}
+
+			case Index:
+				load(left);
+				load(right);
+				code.op(IALOAD);
+				store(s);
+				break;
+
+			case MemberAssg:
+				load(left);
+				load(right);
+				code.op2(PUTFIELD, fieldref(objectType(left).getName(), (String) special));
+				load(right);
+				store(s);
+				break;
+
+			case IndexAssg:
+				load(left);
+				load((SSAStatement) special);
+				load(right);
+				code.op(IASTORE);
+				load(right);
+				store(s);
+				break;
+
+			case Not:
+				load(left);
+				code.op(ICONST_0 + 1);
+				code.op(IXOR);
+				store(s);
+				break;
+
+			case Lt: compare(left, right, IF_ICMPLT); store(s); break;
+			case Le: compare(left, right, IF_ICMPLE); store(s); break;
+			case Gt: compare(left, right, IF_ICMPGT); store(s); break;
+			case Ge: compare(left, right, IF_ICMPGE); store(s); break;
+
+			case Eq:
+			case Ne:
+			{
+				boolean eq = s.getOp() == SSAStatement.Op.Eq;
+				if (isInt(left) && isInt(right)) {
+					compare(left, right, eq ? IF_ICMPEQ : IF_ICMPNE);
+				} else if (!isInt(left) && !isInt(right)) {
+					compare(left, right, eq ? IF_ACMPEQ : IF_ACMPNE);
+				} else {
+					// a primitive is never equal to an object
+					code.iconst(eq ? 0 : 1);
+				}
+				store(s);
+				break;
+			}
+
+			case Plus: arith(left, right, IADD); store(s); break;
+			case Minus: arith(left, right, ISUB); store(s); break;
+			case Mul: arith(left, right, IMUL); store(s); break;
+			case Div: arith(left, right, IDIV); store(s); break;
+			case Mod: arith(left, right, IREM); store(s); break;
+			case And: arith(left, right, IAND); store(s); break;
+			case Or: arith(left, right, IOR); store(s); break;
+
+			default:
+				throw new Error("Unsupported operation in the JVM backend: " + s.getOp());
+		}
+	}
+
+	private void arith(SSAStatement left, SSAStatement right, int opcode) {
+		load(left);
+		load(right);
+		code.op(opcode);
+	}
+
+	// push 1 if the comparison holds, otherwise 0
+	private void compare(SSAStatement left, SSAStatement right, int opcode) {
+		ClassFile.Label yes = new ClassFile.Label();
+		ClassFile.Label done = new ClassFile.Label();
+		load(left);
+		load(right);
+		code.jump(opcode, yes);
+		code.op(ICONST_0);
+		code.jump(GOTO, done);
+		code.mark(yes);
+		code.op(ICONST_0 + 1);
+		code.mark(done);
+	}
+
+	private void load(SSAStatement s) {
+		code.local(isInt(s) ? ILOAD : ALOAD, local(s));
+	}
+
+	private void store(SSAStatement s) {
+		code.local(isInt(s) ? ISTORE : ASTORE, local(s));
+	}
+
+	private int local(SSAStatement s) {
+		Integer local = locals.get(s);
+		if (local == null)
+			throw new Error("Statement " + s.getIndex() + " has no value");
+		return local.intValue();
+	}
+
+	private ClassFile.Label label(String name) {
+		ClassFile.Label label = labels.get(name);
+		if (label == null) {
+			label = new ClassFile.Label();
+			labels.put(name, label);
+		}
+		return label;
+	}
+
+	private int fieldref(String cname, String fname) {
+		SSAField field = prog.getClass(cname).getField(prog, fname);
+		if (field == null)
+			throw new Error("Class " + cname + " has no field " + fname);
+		return cf.fieldref(className(cname), fname, descriptor(field.getType()));
+	}
+
+	// ints and booleans are both JVM ints
+	private static boolean isInt(SSAStatement s) {
+		return s.getType().isPrimitive();
+	}
+
+	private static ObjectType objectType(SSAStatement s) {
+		if (!(s.getType() instanceof ObjectType))
+			throw new Error("Statement " + s.getIndex() + " is not an object");
+		return (ObjectType) s.getType();
+	}
+
+	private static String className(String name) {
+		if (name.equals("Object")) return "java/lang/Object";
+		return PACKAGE + name;
+	}
+
+	private static String descriptor(StaticType type) {
+		if (type instanceof PrimitiveType.IntType) return "I";
+		if (type instanceof PrimitiveType.BooleanType) return "Z";
+		if (type instanceof ObjectType) {
+			String name = ((ObjectType) type).getName();
+			if (name.equals("int[]")) return "[I";
+			return "L" + className(name) + ";";
+		}
+		throw new Error("No JVM type for " + type);
+	}
+
+	private static String descriptor(SSAMethod m) {
+		StringBuilder desc = new StringBuilder("(");
+		for (StaticType param : m.getParamTypes())
+			desc.append(descriptor(param));
+		desc.append(")").append(descriptor(m.getRetType()));
+		return desc.toString();
+	}
+
+	private static int index(Map<SSAStatement, Integer> indices, SSAStatement s) {
+		Integer i = indices.get(s);
+		if (i == null)
+			throw new Error("Statement " + s.getIndex() + " is not in the method body");
+		return i.intValue();
+	}
+
+	private static int find(int[] group, int i) {
+		while (group[i] != i) {
+			group[i] = group[group[i]];
+			i = group[i];
+		}
+		return i;
+	}
+
+	private static void join(int[] group, int i, int j) {
+		group[find(group, i)] = find(group, j);
+	}
+}
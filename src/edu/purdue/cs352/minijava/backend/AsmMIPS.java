@@ -1,6 +1,7 @@
 package edu.purdue.cs352.minijava.backend;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import edu.purdue.cs352.minijava.ssa.*;
 import edu.purdue.cs352.minijava.types.*;
@@ -8,12 +9,20 @@ import edu.purdue.cs352.minijava.types.*;
 public class AsmMIPS {
 	StringBuilder sb;
 
+	// how registers are allocated for each method
+	RegisterAllocator.Strategy strategy;
+
 	int wordSize = 4;
 	
 	// added by me
 	int numSpills;
 	int numCallerSavedRegs;
 
+	// the registers live across each call, and the calls after which a This
+	// might still need v0
+	Map<SSAStatement, Set<Integer>> liveAcrossCalls;
+	Set<SSAStatement> thisAfterCalls;
+
 
 	// registers for MIPS:
 	private static final String[] registers = {
@@ -60,15 +69,90 @@ public class AsmMIPS {
 		8, 9, 10, 11, 12, 13, 14, 15, 24, 25 // t*
 	};
 
-	private AsmMIPS(StringBuilder sb) {
+	// which free registers are callee-saved, for the register allocator
+	private static final boolean[] calleeSavedFreeRegisters = new boolean[freeRegisters.length];
+	static {
+		for (int i=0; i<freeRegisters.length; i++) {
+			for (int reg : calleeSavedRegisters) {
+				if (freeRegisters[i] == reg)
+					calleeSavedFreeRegisters[i] = true;
+			}
+		}
+	}
+
+	private AsmMIPS(StringBuilder sb, RegisterAllocator.Strategy strategy) {
 		this.sb = sb;
+		this.strategy = strategy;
 	}
 
 	public static String compile(SSAProgram prog) {
-		AsmMIPS compiler = new AsmMIPS(new StringBuilder());
+		return compile(prog, RegisterAllocator.Strategy.GRAPH_COLORING);
+	}
+
+	public static String compile(SSAProgram prog, RegisterAllocator.Strategy strategy) {
+		AsmMIPS compiler = new AsmMIPS(new StringBuilder(), strategy);
+		compiler.header();
+
+		// first compile main
+		compiler.compile(prog, prog.getMain(), "mj_main");
+
+		// then compile all the classes
+		for (SSAClass cl : prog.getClassesOrdered()) {
+			compiler.compile(prog, cl);
+		}
+
+		return compiler.toString();
+	}
 
-		// SPIM stuff
-		compiler.sb.append(
+	// compile each method (with its register allocation) as a separate task
+	// in this pool, then stitch them together in the same order as above
+	public static String compile(SSAProgram prog, ForkJoinPool pool) {
+		return compile(prog, RegisterAllocator.Strategy.GRAPH_COLORING, pool);
+	}
+
+	public static String compile(SSAProgram prog, RegisterAllocator.Strategy strategy, ForkJoinPool pool) {
+		if (pool == null)
+			return compile(prog, strategy);
+
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		tasks.add(methodTask(prog, prog.getMain(), "mj_main", strategy));
+		for (SSAClass cl : prog.getClassesOrdered()) {
+			for (SSAMethod m : cl.getMethodsOrdered())
+				tasks.add(methodTask(prog, m, methodName(cl, m), strategy));
+		}
+		Iterator<String> methods = ParallelMethods.run(pool, tasks).iterator();
+
+		AsmMIPS compiler = new AsmMIPS(new StringBuilder(), strategy);
+		compiler.header();
+		compiler.sb.append(methods.next());
+		for (SSAClass cl : prog.getClassesOrdered()) {
+			compiler.vtable(prog, cl);
+			compiler.sb.append(".text\n");
+			for (int i = 0; i < cl.getMethodsOrdered().size(); i++)
+				compiler.sb.append(methods.next());
+		}
+
+		return compiler.toString();
+	}
+
+	private static Callable<String> methodTask(final SSAProgram prog, final SSAMethod m, final String name,
+			final RegisterAllocator.Strategy strategy) {
+		return new Callable<String>() {
+			public String call() {
+				AsmMIPS compiler = new AsmMIPS(new StringBuilder(), strategy);
+				compiler.compile(prog, m, name);
+				return compiler.toString();
+			}
+		};
+	}
+
+	private static String methodName(SSAClass cl, SSAMethod m) {
+		return "mj__m_" + cl.getASTNode().getName() + "_" + m.getMethod().getName();
+	}
+
+	// SPIM stuff
+	private void header() {
+		sb.append(
 			"main:\n" +
 			" jal mj_main\n" +
 			" li $v0, 10\n" +
@@ -105,21 +189,22 @@ public class AsmMIPS {
 			" syscall\n" +
 			" j $ra\n\n"
 		); 
-
-		// first compile main
-		compiler.compile(prog, prog.getMain(), "mj_main");
-
-		// then compile all the classes
-		for (SSAClass cl : prog.getClassesOrdered()) {
-			compiler.compile(prog, cl);
-		}
-
-		return compiler.toString();
 	}
 
 	// compile this class
 	private void compile(SSAProgram prog, SSAClass cl) {
 		// first make the vtable for this class
+		vtable(prog, cl);
+		
+		// now compile the actual methods
+		sb.append(".text\n");
+		for (SSAMethod m : cl.getMethodsOrdered()) {
+			compile(prog, m, methodName(cl, m));
+		}
+	}
+
+	// make the vtable for this class
+	private void vtable(SSAProgram prog, SSAClass cl) {
 		sb.append(".data\n.align ");
 		sb.append(wordSize);
 		sb.append("\n");
@@ -135,14 +220,6 @@ public class AsmMIPS {
 					ClassLayout.getImplementor(prog, cl, methodName).getASTNode().getName(),
 					methodName));
 		}
-		
-		
-		// now compile the actual methods
-		sb.append(".text\n");
-		for (SSAMethod m : cl.getMethodsOrdered()) {
-			String name = "mj__m_" + cl.getASTNode().getName() + "_" + m.getMethod().getName();
-			compile(prog, m, name);
-		}
 	}
 
 	// compile this method with this name
@@ -173,18 +250,20 @@ public class AsmMIPS {
 			}
 		}
 
-		// FILLIN: perform register allocation
-		RegisterAllocator.alloc(m, freeRegisters.length);
+		// FILLIN: perform register allocation, with what's live across calls
+		// in callee-saved registers where possible
+		RegisterAllocator.alloc(m, freeRegisters.length, strategy, calleeSavedFreeRegisters);
+		liveAcrossCalls = RegisterAllocator.liveAcrossCalls(m);
+		thisAfterCalls = thisAfterCalls(m);
 		
 		
 		
-		// find how many regs are used
-		int maxReg = -1;
+		// find which regs are used
+		Set<Integer> regsUsed = new HashSet<Integer>();
 		for (SSAStatement ssa : m.getBody()) {
-			if (ssa.getRegister() > maxReg)
-				maxReg = ssa.getRegister();
+			if (ssa.getRegister() >= 0)
+				regsUsed.add(freeRegisters[ssa.getRegister()]);
 		}
-		final int numRegsUsed = maxReg+1;
 
 		
 		// FILLIN: figure out how much space we need to reserve for spills
@@ -200,13 +279,12 @@ public class AsmMIPS {
 		
 		// FILLIN: and perhaps any other space we need to reserve (saved registers?)
 		
-		// find number of caller-saved regs used including v0, v1
-		if (numRegsUsed <= 12)
-			numCallerSavedRegs = 2 + numRegsUsed;
-		else if (numRegsUsed <=20)
-			numCallerSavedRegs = 2 + 12;
-		else
-			numCallerSavedRegs = 2 + 12 + (numRegsUsed-20);
+		// find the most caller-saved regs any call has to save
+		numCallerSavedRegs = 0;
+		for (SSAStatement ssa : m.getBody()) {
+			if (liveAcrossCalls.containsKey(ssa))
+				numCallerSavedRegs = Math.max(numCallerSavedRegs, callerSavedAcross(ssa).size());
+		}
 		
 		
 		// FILLIN: reserve space for spills, v0,v1, and caller-saved regs
@@ -216,13 +294,17 @@ public class AsmMIPS {
 
 		// FILLIN: save the callee-saved registers, anything else that needs to be saved
 		
-		// figure out how many of S0-S7 are used
+		// figure out which of S0-S7 are used
 		
-		final int numCalleeSavedRegs = Math.min(Math.max(numRegsUsed-12, 0), 8);
+		final List<Integer> calleeSavedUsed = new ArrayList<Integer>();
+		for (int sIndex=0; sIndex<8; sIndex++) {
+			if (regsUsed.contains(16 + sIndex))
+				calleeSavedUsed.add(sIndex);
+		}
 		
 		
 		// allocate stack space and save S registers that are used
-		for (int sIndex=0; sIndex<numCalleeSavedRegs; sIndex++) {
+		for (int sIndex : calleeSavedUsed) {
 			sb.append(String.format(" add $sp, $sp, -%d\n", wordSize));
 			sb.append(String.format(" sw $s%d, ($sp)\n", sIndex));
 		}
@@ -277,8 +359,8 @@ public class AsmMIPS {
 		sb.append(String.format(" add $sp, $sp, %d\n", wordSize));
 		
 		// restore S registers that were used
-		for (int sIndex=numCalleeSavedRegs-1; sIndex>=0; sIndex--) {
-			sb.append(String.format(" lw $s%d, ($sp)\n", sIndex));
+		for (int i=calleeSavedUsed.size()-1; i>=0; i--) {
+			sb.append(String.format(" lw $s%d, ($sp)\n", calleeSavedUsed.get(i)));
 			sb.append(String.format(" add $sp, $sp, %d\n", wordSize));
 		}
 		
@@ -357,8 +439,8 @@ public class AsmMIPS {
 		}
 		case NewObj: {
 			
-			// save caller-saved regs except for the one the new obj pointer will be stored in
-			appendCodeToSaveCallerSavedRegs(s.getRegister());
+			// save caller-saved regs live across it (never the one the new obj pointer will be stored in)
+			appendCodeToSaveCallerSavedRegs(s);
 			
 			// load address of relevant vtable into a0, load wordsize of object into a1
 			String className = (String)s.getSpecial();
@@ -371,14 +453,14 @@ public class AsmMIPS {
 			
 			
 			// restore caller-saved regs except for the one the new obj pointer will be stored in
-			appendCodeToLoadCallerSavedRegs(s.getRegister());
+			appendCodeToLoadCallerSavedRegs(s);
 			break;
 		}
 		
 		case NewIntArray: {
 			
-			// save caller-saved regs except for the one the new array pointer will be stored in
-			appendCodeToSaveCallerSavedRegs(s.getRegister());
+			// save caller-saved regs live across it (never the one the new array pointer will be stored in)
+			appendCodeToSaveCallerSavedRegs(s);
 			
 			// load wordsize of array into a0
 			SSAStatement size = s.getLeft();
@@ -389,34 +471,34 @@ public class AsmMIPS {
 			sb.append(String.format(" move $%s, $v0\n", reg(s)));
 			
 			// restore caller-saved regs except for the one the new array pointer will be stored in
-			appendCodeToLoadCallerSavedRegs(s.getRegister());
+			appendCodeToLoadCallerSavedRegs(s);
 			break;
 		}
 		
 		case Label: {
-			sb.append(String.format(" .%s:\n", (String)s.getSpecial()));
+			sb.append(String.format(" .%s:\n", label(methodName, s)));
 			break;
 		}
 		case Goto: {
-			sb.append(String.format(" j .%s\n", (String)s.getSpecial()));
+			sb.append(String.format(" j .%s\n", label(methodName, s)));
 			break;
 		}
 		case Branch: {
 			SSAStatement condition = s.getLeft();
 			sb.append(String.format(" bne $%s, $zero, .%s\n",
-					reg(condition), (String)s.getSpecial()));
+					reg(condition), label(methodName, s)));
 			break;
 		}
 		case NBranch: {
 			SSAStatement condition = s.getLeft();
 			sb.append(String.format(" beq $%s, $zero, .%s\n",
-					reg(condition), (String)s.getSpecial()));
+					reg(condition), label(methodName, s)));
 			break;
 		}
 		
 		case Call: {
-			// save caller-saved regs except the one the result will be stored in
-			appendCodeToSaveCallerSavedRegs(s.getRegister());
+			// save caller-saved regs live across it (never the one the result will be stored in)
+			appendCodeToSaveCallerSavedRegs(s);
 			
 			// move target obj ptr to v0
 			SSAStatement target = s.getLeft();
@@ -439,13 +521,13 @@ public class AsmMIPS {
 			sb.append(String.format(" move $%s, $v0\n", reg(s)));
 			
 			// restore the caller-saved regs except the one the result will be stored in
-			appendCodeToLoadCallerSavedRegs(s.getRegister());
+			appendCodeToLoadCallerSavedRegs(s);
 			break;
 		}
 		
 		case Print: {
-			// save all caller-saved regs
-			appendCodeToSaveCallerSavedRegs(-1);
+			// save the caller-saved regs live across it
+			appendCodeToSaveCallerSavedRegs(s);
 			
 			// move print value to a0
 			SSAStatement printValue = s.getLeft();
@@ -453,8 +535,8 @@ public class AsmMIPS {
 				sb.append(String.format(" move $a0, $%s\n", reg(printValue)));
 			sb.append(" jal minijavaPrint\n");
 			
-			// restore all caller-saved regs
-			appendCodeToLoadCallerSavedRegs(-1);
+			// restore them
+			appendCodeToLoadCallerSavedRegs(s);
 			break;
 		}
 		case Return: {
@@ -623,29 +705,90 @@ public class AsmMIPS {
 		return ClassLayout.fieldOffset(prog, targetTypeClass, memberName);
 	}
 	
-	private void appendCodeToSaveCallerSavedRegs(int resultFreeReg) {
-		int resultReg = resultFreeReg < 0 ? -1 : freeRegisters[resultFreeReg];
+	// the caller-saved registers this call has to keep: those live across
+	// it, and v0 while a This might still read it
+	private List<Integer> callerSavedAcross(SSAStatement call) {
+		Set<Integer> live = new HashSet<Integer>();
+		for (int freeReg : liveAcrossCalls.get(call))
+			live.add(freeRegisters[freeReg]);
+		if (thisAfterCalls.contains(call))
+			live.add(2);
+
+		List<Integer> ret = new ArrayList<Integer>();
+		for (int reg : callerSavedRegisters) {
+			if (live.contains(reg))
+				ret.add(reg);
+		}
+		return ret;
+	}
+
+	private void appendCodeToSaveCallerSavedRegs(SSAStatement call) {
 		int frameOffset = 1 + numSpills;
-		for (int i=0; i<numCallerSavedRegs; i++) {
-			if (callerSavedRegisters[i]!=resultReg) {
-				sb.append(String.format(" sw $%s, -%d($fp)\n",
-						registers[callerSavedRegisters[i]], frameOffset*wordSize));
-				frameOffset++;
-			}
+		for (int reg : callerSavedAcross(call)) {
+			sb.append(String.format(" sw $%s, -%d($fp)\n",
+					registers[reg], frameOffset*wordSize));
+			frameOffset++;
 		}
 	}
-	private void appendCodeToLoadCallerSavedRegs(int resultFreeReg) {
-		int resultReg = resultFreeReg < 0 ? -1 : freeRegisters[resultFreeReg];
+	private void appendCodeToLoadCallerSavedRegs(SSAStatement call) {
 		int frameOffset = 1 + numSpills;
-		for (int i=0; i<numCallerSavedRegs; i++) {
-			if (callerSavedRegisters[i]!=resultReg) {
-				sb.append(String.format(" lw $%s, -%d($fp)\n",
-						registers[callerSavedRegisters[i]], frameOffset*wordSize));
-				frameOffset++;
+		for (int reg : callerSavedAcross(call)) {
+			sb.append(String.format(" lw $%s, -%d($fp)\n",
+					registers[reg], frameOffset*wordSize));
+			frameOffset++;
+		}
+	}
+
+	// the calls in this method after which a This can still come, which
+	// needs v0 to still have this: every call a This is reachable from
+	private static Set<SSAStatement> thisAfterCalls(SSAMethod m) {
+		List<SSAStatement> body = m.getBody();
+		ControlFlowGraph cfg = m.getCFG();
+		List<ControlFlowGraph.Block> blocks = cfg.getBlocks();
+
+		// whether a This is reachable from the start of each block
+		boolean[] reaches = new boolean[blocks.size()];
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int bi=blocks.size()-1; bi>=0; bi--) {
+				ControlFlowGraph.Block b = blocks.get(bi);
+				if (reaches[bi])
+					continue;
+				boolean r = false;
+				for (int i=b.getStart(); i<b.getEnd() && !r; i++)
+					r = body.get(i).getOp() == SSAStatement.Op.This;
+				for (int si : b.getSuccs())
+					r |= reaches[si];
+				if (r) {
+					reaches[bi] = true;
+					changed = true;
+				}
 			}
 		}
+
+		Set<SSAStatement> ret = new HashSet<SSAStatement>();
+		for (ControlFlowGraph.Block b : blocks) {
+			boolean after = false;
+			for (int si : b.getSuccs())
+				after |= reaches[si];
+			for (int i=b.getEnd()-1; i>=b.getStart(); i--) {
+				SSAStatement s = body.get(i);
+				if (s.getOp() == SSAStatement.Op.This)
+					after = true;
+				else if (after && (s.getOp() == SSAStatement.Op.Call || s.getOp() == SSAStatement.Op.NewObj
+						|| s.getOp() == SSAStatement.Op.NewIntArray || s.getOp() == SSAStatement.Op.Print))
+					ret.add(s);
+			}
+		}
+		return ret;
 	}
 	
+	// labels are only unique within a method, so qualify them like .ret_
+	private static String label(String methodName, SSAStatement s) {
+		return (String)s.getSpecial() + "_" + methodName;
+	}
+
 	private String reg(SSAStatement s) {
 		return registers[freeRegisters[s.getRegister()]];
 	}
@@ -0,0 +1,68 @@
+package edu.purdue.cs352.minijava.backend;
+
+/* Sets of small non-negative ints (e.g. dense variable numbers) as bit
+ * vectors in long[]s. Every set used together must have been made with the
+ * same size. */
+final class Bits {
+	private Bits() {}
+
+	static long[] make(int size) {
+		return new long[(size + 63) >>> 6];
+	}
+
+	static boolean get(long[] b, int i) {
+		return (b[i >>> 6] & (1L << i)) != 0;
+	}
+
+	static void set(long[] b, int i) {
+		b[i >>> 6] |= 1L << i;
+	}
+
+	static void clear(long[] b, int i) {
+		b[i >>> 6] &= ~(1L << i);
+	}
+
+	static void copy(long[] to, long[] from) {
+		System.arraycopy(from, 0, to, 0, to.length);
+	}
+
+	// to |= from, returning whether to changed
+	static boolean or(long[] to, long[] from) {
+		long changed = 0;
+		for (int i = 0; i < to.length; i++) {
+			long w = to[i] | from[i];
+			changed |= w ^ to[i];
+			to[i] = w;
+		}
+		return changed != 0;
+	}
+
+	// to = use | (out & ~def), the liveness transfer function, returning
+	// whether to changed
+	static boolean transfer(long[] to, long[] use, long[] out, long[] def) {
+		long changed = 0;
+		for (int i = 0; i < to.length; i++) {
+			long w = use[i] | (out[i] & ~def[i]);
+			changed |= w ^ to[i];
+			to[i] = w;
+		}
+		return changed != 0;
+	}
+
+	// the members of b, in increasing order
+	static int[] members(long[] b) {
+		int n = 0;
+		for (long w : b)
+			n += Long.bitCount(w);
+		int[] ret = new int[n];
+		n = 0;
+		for (int i = 0; i < b.length; i++) {
+			long w = b[i];
+			while (w != 0) {
+				ret[n++] = (i << 6) + Long.numberOfTrailingZeros(w);
+				w &= w - 1;
+			}
+		}
+		return ret;
+	}
+}
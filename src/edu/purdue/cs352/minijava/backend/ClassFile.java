@@ -0,0 +1,298 @@
+package edu.purdue.cs352.minijava.backend;
+
+import java.io.*;
+import java.util.*;
+
+/* Just enough of a JVM class file writer for AsmJVM: a constant pool, fields
+ * and methods with code. Classes are written as version 49 (Java 5) class
+ * files, which the JVM verifies by type inference, so no stack maps need to
+ * be generated. */
+class ClassFile {
+	// access flags
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_SUPER = 0x0020;
+
+	// opcodes used by AsmJVM
+	static final int ACONST_NULL = 0x01;
+	static final int ICONST_0 = 0x03;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int ILOAD = 0x15;
+	static final int ALOAD = 0x19;
+	static final int IALOAD = 0x2e;
+	static final int ISTORE = 0x36;
+	static final int ASTORE = 0x3a;
+	static final int IASTORE = 0x4f;
+	static final int DUP = 0x59;
+	static final int IADD = 0x60;
+	static final int ISUB = 0x64;
+	static final int IMUL = 0x68;
+	static final int IDIV = 0x6c;
+	static final int IREM = 0x70;
+	static final int IAND = 0x7e;
+	static final int IOR = 0x80;
+	static final int IXOR = 0x82;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int IF_ICMPEQ = 0x9f;
+	static final int IF_ICMPNE = 0xa0;
+	static final int IF_ICMPLT = 0xa1;
+	static final int IF_ICMPGE = 0xa2;
+	static final int IF_ICMPGT = 0xa3;
+	static final int IF_ICMPLE = 0xa4;
+	static final int IF_ACMPEQ = 0xa5;
+	static final int IF_ACMPNE = 0xa6;
+	static final int GOTO = 0xa7;
+	static final int IRETURN = 0xac;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETSTATIC = 0xb2;
+	static final int GETFIELD = 0xb4;
+	static final int PUTFIELD = 0xb5;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int NEW = 0xbb;
+	static final int NEWARRAY = 0xbc;
+	static final int ARRAYLENGTH = 0xbe;
+
+	static final int T_INT = 10;
+
+	// a position in the code of a method, possibly not yet known
+	static class Label {
+		private int position = -1;
+
+		// (opcode position, offset position) of each jump here
+		private final List<int[]> fixups = new ArrayList<int[]>();
+	}
+
+	// the code of one method
+	class Code {
+		private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private final List<Label> labels = new ArrayList<Label>();
+		private int maxStack, maxLocals;
+
+		void op(int opcode) {
+			code.write(opcode);
+		}
+
+		void op1(int opcode, int operand) {
+			code.write(opcode);
+			code.write(operand);
+		}
+
+		void op2(int opcode, int operand) {
+			code.write(opcode);
+			u2(operand);
+		}
+
+		// push an int constant in the shortest way
+		void iconst(int value) {
+			if (value >= -1 && value <= 5) {
+				op(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op1(BIPUSH, value & 0xff);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op2(SIPUSH, value & 0xffff);
+			} else {
+				op2(LDC_W, integer(value));
+			}
+		}
+
+		// loads and stores of locals (ILOAD, ALOAD, ISTORE or ASTORE)
+		void local(int opcode, int local) {
+			if (local < 256) {
+				op1(opcode, local);
+			} else {
+				code.write(0xc4); // wide
+				op2(opcode, local);
+			}
+		}
+
+		void jump(int opcode, Label target) {
+			target.fixups.add(new int[]{code.size(), code.size() + 1});
+			labels.add(target);
+			op2(opcode, 0);
+		}
+
+		void mark(Label label) {
+			label.position = code.size();
+		}
+
+		void setMaxs(int maxStack, int maxLocals) {
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		private void u2(int v) {
+			code.write((v >> 8) & 0xff);
+			code.write(v & 0xff);
+		}
+
+		// the code with all of its jumps filled in
+		private byte[] resolve() {
+			byte[] bytes = code.toByteArray();
+			if (bytes.length > 65535)
+				throw new Error("Method too large for the JVM.");
+			for (Label label : labels) {
+				if (label.position < 0)
+					throw new Error("Jump to a label which was never placed.");
+				for (int[] fixup : label.fixups) {
+					int offset = label.position - fixup[0];
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+						throw new Error("Jump too far for the JVM.");
+					bytes[fixup[1]] = (byte) (offset >> 8);
+					bytes[fixup[1] + 1] = (byte) offset;
+				}
+			}
+			return bytes;
+		}
+	}
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolSize = 1;
+
+	private final int thisClass, superClass;
+	private final List<int[]> fields = new ArrayList<int[]>();
+	private final List<int[]> methodHeaders = new ArrayList<int[]>();
+	private final List<Code> methodCode = new ArrayList<Code>();
+
+	ClassFile(String name, String superName) {
+		thisClass = cls(name);
+		superClass = cls(superName);
+	}
+
+	void addField(String name, String desc) {
+		fields.add(new int[]{ACC_PUBLIC, utf8(name), utf8(desc)});
+	}
+
+	Code addMethod(int access, String name, String desc) {
+		Code code = new Code();
+		methodHeaders.add(new int[]{access, utf8(name), utf8(desc)});
+		methodCode.add(code);
+		return code;
+	}
+
+	// constant pool entries
+	int utf8(String s) {
+		String key = "U" + s;
+		Integer idx = poolIndex.get(key);
+		if (idx != null) return idx;
+		try {
+			poolOut.writeByte(1);
+			poolOut.writeUTF(s);
+		} catch (IOException ex) {
+			throw new Error(ex);
+		}
+		return add(key);
+	}
+
+	int integer(int value) {
+		String key = "I" + value;
+		Integer idx = poolIndex.get(key);
+		if (idx != null) return idx;
+		try {
+			poolOut.writeByte(3);
+			poolOut.writeInt(value);
+		} catch (IOException ex) {
+			throw new Error(ex);
+		}
+		return add(key);
+	}
+
+	int cls(String name) {
+		return ref(7, "C" + name, utf8(name), -1);
+	}
+
+	int fieldref(String owner, String name, String desc) {
+		return ref(9, "F" + owner + "." + name + ":" + desc, cls(owner), nameAndType(name, desc));
+	}
+
+	int methodref(String owner, String name, String desc) {
+		return ref(10, "M" + owner + "." + name + desc, cls(owner), nameAndType(name, desc));
+	}
+
+	private int nameAndType(String name, String desc) {
+		return ref(12, "N" + name + ":" + desc, utf8(name), utf8(desc));
+	}
+
+	// an entry referring to one or two others
+	private int ref(int tag, String key, int a, int b) {
+		Integer idx = poolIndex.get(key);
+		if (idx != null) return idx;
+		try {
+			poolOut.writeByte(tag);
+			poolOut.writeShort(a);
+			if (b >= 0) poolOut.writeShort(b);
+		} catch (IOException ex) {
+			throw new Error(ex);
+		}
+		return add(key);
+	}
+
+	private int add(String key) {
+		if (poolSize > 65535)
+			throw new Error("Constant pool too large for the JVM.");
+		poolIndex.put(key, poolSize);
+		return poolSize++;
+	}
+
+	byte[] toByteArray() {
+		// make sure the attribute name is in the pool before writing it
+		int codeName = utf8("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xcafebabe);
+			out.writeShort(0);  // minor version
+			out.writeShort(49); // major version
+			out.writeShort(poolSize);
+			poolOut.flush();
+			pool.writeTo(out);
+
+			out.writeShort(ACC_PUBLIC | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+
+			out.writeShort(fields.size());
+			for (int[] f : fields) {
+				out.writeShort(f[0]);
+				out.writeShort(f[1]);
+				out.writeShort(f[2]);
+				out.writeShort(0); // attributes
+			}
+
+			out.writeShort(methodHeaders.size());
+			for (int i = 0; i < methodHeaders.size(); i++) {
+				int[] m = methodHeaders.get(i);
+				Code code = methodCode.get(i);
+				byte[] codeBytes = code.resolve();
+
+				out.writeShort(m[0]);
+				out.writeShort(m[1]);
+				out.writeShort(m[2]);
+				out.writeShort(1); // attributes
+
+				out.writeShort(codeName);
+				out.writeInt(12 + codeBytes.length);
+				out.writeShort(code.maxStack);
+				out.writeShort(code.maxLocals);
+				out.writeInt(codeBytes.length);
+				out.write(codeBytes);
+				out.writeShort(0); // exception table
+				out.writeShort(0); // attributes
+			}
+
+			out.writeShort(0); // attributes
+			out.flush();
+		} catch (IOException ex) {
+			throw new Error(ex);
+		}
+		return bytes.toByteArray();
+	}
+}
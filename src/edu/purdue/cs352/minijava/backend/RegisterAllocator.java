@@ -1,26 +1,65 @@
 package edu.purdue.cs352.minijava.backend;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+import edu.purdue.cs352.minijava.ast.Main;
 import edu.purdue.cs352.minijava.ssa.*;
 
 public class RegisterAllocator {
+	// how registers are assigned once liveness is known: by coloring the
+	// interference graph, or by a single linear scan over live intervals
+	// (faster, but usually with more spills)
+	public enum Strategy { GRAPH_COLORING, LINEAR_SCAN }
+
+	// the fewest free registers linear scan always works with: the four
+	// argument registers, which pinned variables can hold throughout, and
+	// three operands of a statement reloaded at once
+	public static final int MIN_LINEAR_SCAN_REGISTERS = 7;
+
+	// how many rounds graph coloring gets before a method which still needs
+	// spills is finished by linear scan instead: spilling and recoloring
+	// needn't converge, as with few registers it can go on spilling reloads
+	// which are no shorter for it
+	private static final int MAX_COLORING_ROUNDS = 10;
+
+	// what allocating one method took
+	public static class Stats {
+		public String method;
+		public int rounds, spills;
+		public long nanos;
+
+		// copies (VarAssgs, and Args passed in registers), and how many
+		// of them ended up needing no move
+		public int moves, movesEliminated;
+
+		private Stats(String method) {
+			this.method = method;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d rounds, %d spills, %d of %d moves eliminated, %.3f ms",
+					method, rounds, spills, movesEliminated, moves, nanos / 1e6);
+		}
+	}
+
 	/* a "variable" is just a set of SSA statements. We alias it (sort of) to
 	 * make this explicit. A Variable is thus equivalently a definition of
 	 * def(v). */
 	static class Variable implements Comparable<Variable> {		
 		private final SSAStatement master; // just for debugging
-		private static int highestRegisterUsed = -1;
 		
 		private Set<SSAStatement> v;
 		private boolean registerPinned;
 		private int register; 
+		private int id; // dense number, for the bit sets in liveness
 		
 		private Variable(SSAStatement s) {
 			master = s;
 			registerPinned = s.registerPinned();
 			register = s.getRegister();
-			v = new HashSet<SSAStatement>();
+			v = new LinkedHashSet<SSAStatement>();
 			v.add(s);
 		}
 		@Override
@@ -32,21 +71,14 @@ public class RegisterAllocator {
 
 	// a node in the control flow graph
 	class CFNode {
-		private Set<CFNode> pred;
-		private Set<CFNode> succ;
-		
 		private Variable def;
-		private Set<Variable> use;
-		private Set<Variable> in;
-		private Set<Variable> succIn;
+		private long[] use;
+		private long[] succIn; // out[n], the union of in[s] of its successors
 		
 		private CFNode(SSAStatement source) {
-			pred = new HashSet<CFNode>();
-			succ = new HashSet<CFNode>();
 			def = null;
-			use = new HashSet<Variable>();
-			in = new HashSet<Variable>();
-			succIn = new HashSet<Variable>();
+			use = Bits.make(capacity);
+			succIn = Bits.make(capacity);
 			
 			// unify CFNodes do not define anything since they should act
 			// like pass-throughs in the cfgraph.
@@ -58,64 +90,188 @@ public class RegisterAllocator {
 		}
    }
 
+	// a live interval for linear scan: from the first to the last position
+	// where the variable is defined, used or live. Statement i reads its
+	// operands at position 2i and writes its result at 2i+1
+	class Interval {
+		private final Variable var;
+		private int start = Integer.MAX_VALUE, end = -1;
+		private int register = -1;
+
+		private Interval(Variable var) {
+			this.var = var;
+		}
+
+		private void cover(int at) {
+			if (at < start) start = at;
+			if (at > end) end = at;
+		}
+
+		private boolean overlaps(Interval i) {
+			return start <= i.end && i.start <= end;
+		}
+
+		// can spilling it make it any shorter? Not if it's over no more
+		// than two statements (as are the Loads and Stores of earlier
+		// spills), or only reloads right before their uses
+		private boolean canShrink() {
+			if (end/2 - start/2 <= 1)
+				return false;
+			return !beforeUse.containsAll(var.v);
+		}
+	}
+
+	// the liveness sets of a block of the method's ControlFlowGraph
+	class BlockSets {
+		// use[b] is the variables used before being defined in the block
+		private long[] use, def, in, out;
+
+		private BlockSets() {
+			use = Bits.make(capacity);
+			def = Bits.make(capacity);
+			in = Bits.make(capacity);
+			out = Bits.make(capacity);
+		}
+	}
+
 	// a node in the interference graph (a temporary)
 	class TempNode {
 		// FILLIN...
 		private Variable var;
-		private Set<TempNode> adj;
+
+		// the ids of its neighbours are adj[0..numAdj), in the order they
+		// were added (for interference queries, see interferes)
+		private int[] adj;
+		private int numAdj;
+		private int edges; // one per statement which adds an edge here
+
 		private int degree;
 		private int color;
+		private double cost; // of spilling it
 		private TempNode(Variable var) {
 			this.var = var;
-			adj = new HashSet<TempNode>();
+			adj = new int[4];
+			numAdj = 0;
+			edges = 0;
 			degree = 0;
 			color = 0;
 		}
+
+		private void addAdj(int id) {
+			if (numAdj == adj.length)
+				adj = Arrays.copyOf(adj, 2 * numAdj);
+			adj[numAdj++] = id;
+		}
+
+		private void removeAdj(int id) {
+			for (int i=0; i<numAdj; i++) {
+				if (adj[i] == id) {
+					System.arraycopy(adj, i + 1, adj, i, numAdj - i - 1);
+					numAdj--;
+					return;
+				}
+			}
+		}
 	}
 
 	
-	// the block we're performing allocation over
+	// the method we're performing allocation over, its body and its control
+	// flow graph
+	private SSAMethod method;
 	private List<SSAStatement> block;
-	
-	private Map<String, SSAStatement> labelToSsaMap;
+	private ControlFlowGraph cfg;
 	
 	private Set<Variable> variables;
 	private Map<SSAStatement, Variable> ssaToVarMap;
 	
 	private List<CFNode> cfnodes;
 	private Map<SSAStatement, CFNode> ssaToCfnodeMap;
+	private BlockSets[] blockSets;
+	private Variable[] idToVar;
+	private int numIds;
+	private int capacity; // of every bit set, in variables
 	
 	private Set<TempNode> tempnodes;
-	private Map<Variable, TempNode> varToTempnodeMap;
+	private TempNode[] idToTempnode;
+
+	// the interference graph as a lower triangular bit matrix over variable
+	// ids: a and b (a > b) interfere iff bit a*(a-1)/2 + b is set. Rows only
+	// get added at the end, so it grows as idToVar does
+	private long[] interference;
+
+	private int highestRegisterUsed = -1;
+
+	// the constants performSpills recomputed instead of Loading
+	private Set<SSAStatement> reloads = new HashSet<SSAStatement>();
+
+	// every statement of a variable spilled so far
+	private Set<SSAStatement> spilledBefore = new HashSet<SSAStatement>();
+
+	// the reloads put right before their only use, which spilling again
+	// can't make any shorter
+	private Set<SSAStatement> beforeUse = new HashSet<SSAStatement>();
+
+	// which registers calls leave alone (null if there's no telling), for
+	// the variables live across calls to get first
+	private boolean[] calleeSaved;
 	
 	
 	
-	private RegisterAllocator(List<SSAStatement> block) {
-		this.block = block;
-		labelToSsaMap = new HashMap<String, SSAStatement>();
-		variables = new HashSet<Variable>();
+	private RegisterAllocator(SSAMethod method) {
+		this.method = method;
+		variables = new LinkedHashSet<Variable>();
 		ssaToVarMap = new HashMap<SSAStatement, Variable>();
 		cfnodes = new ArrayList<CFNode>();
 		ssaToCfnodeMap = new HashMap<SSAStatement, CFNode>();
-		tempnodes = new HashSet<TempNode>();
-		varToTempnodeMap = new HashMap<Variable, TempNode>();
-		// build labelToSsaMap
-		for (SSAStatement ssa : block) {
-			if (ssa.getOp() == SSAStatement.Op.Label) {
-				labelToSsaMap.put((String)ssa.getSpecial(), ssa);
-			}
-		}
+		tempnodes = new LinkedHashSet<TempNode>();
 	}
 
 	// perform all register allocations for this program
-	public static void alloc(SSAProgram prog, int freeRegisters) {
-		// first main
-		SSAMethod main = prog.getMain();
-		main.setBody(alloc(main.getBody(), freeRegisters));
+	public static List<Stats> alloc(SSAProgram prog, int freeRegisters) {
+		return alloc(prog, freeRegisters, Strategy.GRAPH_COLORING, null);
+	}
+
+	// perform all register allocations for this program, each method as a
+	// separate task in this pool
+	public static List<Stats> alloc(SSAProgram prog, int freeRegisters, ForkJoinPool pool) {
+		return alloc(prog, freeRegisters, Strategy.GRAPH_COLORING, pool);
+	}
+
+	// perform all register allocations for this program with this strategy,
+	// each method as a separate task if there's a pool
+	public static List<Stats> alloc(SSAProgram prog, final int freeRegisters, final Strategy strategy, ForkJoinPool pool) {
+		List<SSAMethod> methods = new ArrayList<SSAMethod>();
+		List<String> names = new ArrayList<String>();
+		methods.add(prog.getMain());
+		names.add("main");
+		for (SSAClass cl : prog.getClassesOrdered()) {
+			for (SSAMethod m : cl.getMethodsOrdered()) {
+				methods.add(m);
+				names.add(cl.getASTNode().getName() + "." + m.getMethod().getName());
+			}
+		}
+
+		List<Stats> stats;
+		if (pool == null) {
+			stats = new ArrayList<Stats>();
+			for (SSAMethod m : methods)
+				stats.add(alloc(m, freeRegisters, strategy));
+
+		} else {
+			List<Callable<Stats>> tasks = new ArrayList<Callable<Stats>>();
+			for (final SSAMethod m : methods) {
+				tasks.add(new Callable<Stats>() {
+					public Stats call() {
+						return alloc(m, freeRegisters, strategy);
+					}
+				});
+			}
+			stats = ParallelMethods.run(pool, tasks);
+		}
 
-		// then each class
-		for (SSAClass cl : prog.getClassesOrdered())
-			alloc(cl, freeRegisters);
+		for (int i = 0; i < stats.size(); i++)
+			stats.get(i).method = names.get(i);
+		return stats;
 	}
 
 	// perform all register allocations for this class
@@ -125,89 +281,170 @@ public class RegisterAllocator {
 	}
 
 	// perform register allocation for this method
-	public static void alloc(SSAMethod m, int freeRegisters) {
-		m.setBody(alloc(m.getBody(), freeRegisters));
+	public static Stats alloc(SSAMethod m, int freeRegisters) {
+		return alloc(m, freeRegisters, Strategy.GRAPH_COLORING);
 	}
 
-	// the register allocator itself
-	public static List<SSAStatement> alloc(List<SSAStatement> block, int freeRegisters) {
-		Set<TempNode> actualSpills;
+	// perform register allocation for this method with this strategy
+	public static Stats alloc(SSAMethod m, int freeRegisters, Strategy strategy) {
+		return alloc(m, freeRegisters, strategy, null);
+	}
 
-		RegisterAllocator ra = new RegisterAllocator(block);
+	// the register allocator itself, giving the variables live across calls
+	// the calleeSaved registers where it can
+	public static Stats alloc(SSAMethod m, int freeRegisters, Strategy strategy, boolean[] calleeSaved) {
+		Set<Variable> actualSpills;
+
+		long startTime = System.nanoTime();
+		Stats stats = new Stats(m.getMethod() == null ? "main" : m.getMethod().getName());
+		RegisterAllocator ra = new RegisterAllocator(m);
+		ra.calleeSaved = calleeSaved;
+
+		// with graph coloring, only the first round builds everything from
+		// scratch: spill rounds update it for the new Loads and Stores
+		boolean rebuild = true;
 
 		while (true) {
-			
-			ra.init();
-				
-			// prefill the variables with single statements
-			ra.initVariables();
+			stats.rounds++;
+			if (strategy == Strategy.GRAPH_COLORING && stats.rounds > MAX_COLORING_ROUNDS) {
+				strategy = Strategy.LINEAR_SCAN;
+				rebuild = true;
+			}
 
-			// unify
-			ra.unifyVariables();
+			if (rebuild) {
+				ra.init();
 
-			// now build the CF nodes
-			ra.initCFNodes();
+				// prefill the variables with single statements
+				ra.initVariables();
 
-			// build the use[n] relationship from them
-			// marks each variable as used in the program or not
-			ra.addUses();
+				// unify
+				ra.unifyVariables();
 
+				// now build the CF nodes
+				ra.initCFNodes();
 
-			//System.out.println("\nliveness analysis...");
-			
-			// build their successor/predecessor relationships
-			ra.cfPredSucc();
+				// build the use[n] relationship from them
+				// marks each variable as used in the program or not
+				ra.addUses();
+
+
+				//System.out.println("\nliveness analysis...");
+
+				// find use[b] and def[b] of each basic block
+				ra.initBlocks();
 
-			// liveness analysis
-			ra.liveness();
-			//ra.printCfg();
+				// liveness analysis
+				ra.liveness();
+				//ra.printCfg();
 
+			} else {
+				// just start the registers over
+				ra.resetRegisters();
+			}
 			
 			//System.out.println("\nallocating registers...");
 			
-			// build the temporaries
-			ra.initTempNodes();
-			
-			// and figure out their interference
-			ra.buildInterference();
+			if (strategy == Strategy.LINEAR_SCAN) {
+				// scan the live intervals, spilling as we go
+				actualSpills = ra.linearScan(freeRegisters);
+
+			} else {
+				if (rebuild) {
+					// build the temporaries
+					ra.initTempNodes();
+					
+					// and figure out their interference
+					ra.buildInterference();
+				}
+
+				// merge what copies what, where that's safe
+				ra.coalesce(freeRegisters);
 
-			// do we need to spill?
-			actualSpills = ra.select(freeRegisters);
+				// do we need to spill?
+				actualSpills = new LinkedHashSet<Variable>();
+				for (TempNode node : ra.select(freeRegisters))
+					actualSpills.add(node.var);
+			}
 			
 			
 			if (actualSpills.isEmpty())
 				break;
+			stats.spills += actualSpills.size();
 
 			// OK, rewrite to perform the spills
-			ra.performSpills(actualSpills);
+			ra.performSpills(actualSpills, freeRegisters);
+			m.setBody(ra.block);
+
+			// and bring liveness and interference up to date with them
+			if (strategy == Strategy.GRAPH_COLORING) {
+				ra.updateAfterSpills(actualSpills);
+				rebuild = false;
+			}
+		}
+
+		for (SSAStatement ssa : m.getBody()) {
+			if (isCopy(ssa)) {
+				stats.moves++;
+				if (ssa.getRegister() == ssa.getLeft().getRegister())
+					stats.movesEliminated++;
+			}
 		}
 
-		return ra.block;
+		stats.nanos = System.nanoTime() - startTime;
+		return stats;
+	}
+
+	// perform register allocation for this body of statements
+	public static List<SSAStatement> alloc(List<SSAStatement> block, int freeRegisters) {
+		SSAMethod m = new SSAMethod((Main) null, block);
+		alloc(m, freeRegisters);
+		return m.getBody();
+	}
+
+	// the registers live across each call of this allocated method, other
+	// than the one the call itself defines, so that only those need saving
+	public static Map<SSAStatement, Set<Integer>> liveAcrossCalls(SSAMethod m) {
+		// (not init, which would clear the registers)
+		RegisterAllocator ra = new RegisterAllocator(m);
+		ra.block = m.getBody();
+		ra.cfg = m.getCFG();
+		ra.initVariables();
+		ra.unifyVariables();
+		ra.initCFNodes();
+		ra.addUses();
+		ra.initBlocks();
+		ra.liveness();
+
+		Map<SSAStatement, Set<Integer>> ret = new HashMap<SSAStatement, Set<Integer>>();
+		for (int i=0; i<ra.block.size(); i++) {
+			SSAStatement ssa = ra.block.get(i);
+			if (!isCall(ssa))
+				continue;
+			CFNode node = ra.cfnodes.get(i);
+			Set<Integer> registers = new TreeSet<Integer>();
+			for (int id : Bits.members(node.succIn)) {
+				Variable var = ra.idToVar[id];
+				if (var != node.def && var.master.getRegister() >= 0)
+					registers.add(var.master.getRegister());
+			}
+			ret.put(ssa, registers);
+		}
+		return ret;
 	}
 
 
 	private void init() {
-		labelToSsaMap.clear();
+		block = method.getBody();
+		cfg = method.getCFG();
 		variables.clear();
 		ssaToVarMap.clear();
 		cfnodes.clear();
 		ssaToCfnodeMap.clear();
 		tempnodes.clear();
-		varToTempnodeMap.clear();
-		Variable.highestRegisterUsed = -1;
-		
-		// clear nonpinned ssa's assigned register to -1
-		for (SSAStatement ssa : block) {
-			if (!ssa.registerPinned())
-				ssa.setRegister(-1);
-		}
+		idToTempnode = null;
+		interference = null;
+		resetRegisters();
 		
-		// build labelToSsaMap
-		for (SSAStatement ssa : block) {
-			if (ssa.getOp() == SSAStatement.Op.Label) {
-				labelToSsaMap.put((String)ssa.getSpecial(), ssa);
-			}
-		}
 		// reset the right of all VarAssg back to null
 		for (SSAStatement ssa : block) {
 			if (ssa.getOp() == SSAStatement.Op.VarAssg)
@@ -216,6 +453,17 @@ public class RegisterAllocator {
 	}
 
 	
+	private void resetRegisters() {
+		highestRegisterUsed = -1;
+		
+		// clear nonpinned ssa's assigned register to -1
+		for (SSAStatement ssa : block) {
+			if (!ssa.registerPinned())
+				ssa.setRegister(-1);
+		}
+	}
+
+	
 	private void initVariables() {
 		// Make a variable for each SSAStatement
 		for (SSAStatement ssa : block) {
@@ -265,6 +513,13 @@ public class RegisterAllocator {
 	
 	
 	private void initCFNodes() {
+		// number the variables densely, now that they're all unified
+		idToVar = variables.toArray(new Variable[0]);
+		numIds = idToVar.length;
+		capacity = numIds;
+		for (int i = 0; i < numIds; i++)
+			idToVar[i].id = i;
+
 		// create a CFNode for every SSAStatement
 		for (SSAStatement ssa : block) {
 			CFNode newCfnode = new CFNode(ssa);
@@ -275,93 +530,68 @@ public class RegisterAllocator {
 	
 	
 	private void addUses() {
+		for (SSAStatement ssa : block)
+			addUses(ssa);
+	}
+
+	private void addUses(SSAStatement ssa) {
+		// unify and alias do not actually use anything by themselves.
+		if (ssa.getOp() == SSAStatement.Op.Unify || ssa.getOp() == SSAStatement.Op.Alias)
+			return;
 		
+		// add the variables of the ssas used by this ssa
+		// to the use[n] of this ssa's cfnode
+		CFNode node = ssaToCfnodeMap.get(ssa);
+		for (SSAStatement usedSsa : operands(ssa)) {
+			Variable usedVar = ssaToVarMap.get(usedSsa);
+			Bits.set(node.use, usedVar.id);
+		}
+	}
+
+	// the ssas this ssa refers to, each of which gets a Load before it if
+	// its variable is spilled
+	private static List<SSAStatement> operands(SSAStatement ssa) {
 		List<SSAStatement> usedSsas = new ArrayList<SSAStatement>();
 		
-		for (SSAStatement ssa : block) {
-						
-			// find the ssas used by this ssa
-			
-			usedSsas.clear();
-			
-			// special cases:			
-			switch (ssa.getOp()) {
-			case Call:
-				SSACall call = (SSACall)ssa.getSpecial();
-				for (SSAStatement arg : call.getArgs()) {
-					usedSsas.add(arg);
-				}
-				break;
-			case IndexAssg:
-				usedSsas.add((SSAStatement)ssa.getSpecial());
-				break;
-			case Unify:
-			case Alias:
-				// unify and alias do not actually use anything by themselves.
-				continue;
-			default:
-			}
-			
-			// add the left and right to the used ssas
-			if (ssa.getLeft() != null) {
-				usedSsas.add(ssa.getLeft());
-			}
-			if (ssa.getRight() != null) {
-				usedSsas.add(ssa.getRight());
-			}
-			
-			// add the variables of these used ssas
-			// to the use[n] of this ssa's cfnode
-			// mark these variables as being used somewhere in the program
-			CFNode node = ssaToCfnodeMap.get(ssa);
-			for (SSAStatement usedSsa : usedSsas) {
-				Variable usedVar = ssaToVarMap.get(usedSsa);
-				node.use.add(usedVar);
-				node.in.add(usedVar);
+		// special cases:			
+		switch (ssa.getOp()) {
+		case Call:
+			SSACall call = (SSACall)ssa.getSpecial();
+			for (SSAStatement arg : call.getArgs()) {
+				usedSsas.add(arg);
 			}
+			break;
+		case IndexAssg:
+			usedSsas.add((SSAStatement)ssa.getSpecial());
+			break;
+		default:
+		}
+		
+		// add the left and right to the used ssas
+		if (ssa.getLeft() != null) {
+			usedSsas.add(ssa.getLeft());
 		}
+		if (ssa.getRight() != null) {
+			usedSsas.add(ssa.getRight());
+		}
+		return usedSsas;
 	}
 	
 	
 	
-	private void cfPredSucc() {
-		
-		List<CFNode> succNodes = new ArrayList<CFNode>();
-		
-		for (int i=0; i<block.size(); i++) {
-			
-			succNodes.clear();
-			SSAStatement ssa = block.get(i);
-			
-			// if op is Goto, Branch, or NBranch, add its label's
-			// CFNode as a successor
-			switch (ssa.getOp()) {
-			case Goto: 
-			case Branch:
-			case NBranch: {
-				SSAStatement labelSsa = labelToSsaMap.get(
-						(String)ssa.getSpecial());
-				CFNode succNode = ssaToCfnodeMap.get(labelSsa);
-				succNodes.add(succNode);
-				break;
-			}
-			default:
-			}
-			
-			// if op is not a Goto, add the CFNode of the next ssa in the block
-			// as a successor (if there is a next ssa)
-			if (ssa.getOp() != SSAStatement.Op.Goto
-					&& i < block.size()-1) {
-				SSAStatement nextSsa = block.get(i+1);
-				succNodes.add(ssaToCfnodeMap.get(nextSsa));
-			}
-			
-			// add the successors to this CFNode, add this CFNode to the
-			// predecessors of those successors
-			CFNode node = ssaToCfnodeMap.get(ssa);
-			for (CFNode succNode : succNodes) {
-				node.succ.add(succNode);
-				succNode.pred.add(node);
+	private void initBlocks() {
+		// use[b] and def[b], from the last statement back
+		List<ControlFlowGraph.Block> blocks = cfg.getBlocks();
+		blockSets = new BlockSets[blocks.size()];
+		for (ControlFlowGraph.Block b : blocks) {
+			BlockSets sets = blockSets[b.getIndex()] = new BlockSets();
+			for (int i=b.getEnd()-1; i>=b.getStart(); i--) {
+				CFNode node = cfnodes.get(i);
+				if (node.def != null) {
+					Bits.clear(sets.use, node.def.id);
+					Bits.set(sets.def, node.def.id);
+				}
+				Bits.or(sets.use, node.use);
 			}
 		}
 	}
@@ -369,46 +599,67 @@ public class RegisterAllocator {
 	
 	
 	private void liveness() {
-		
-		boolean cfgHasChanged;
-		do {
-			cfgHasChanged = false;
-			
-			for (int i=cfnodes.size()-1; i>=0; i--) {
-				
-				CFNode node = cfnodes.get(i);
-				boolean nodeHasChanged = false;
-								
-				// add in[s] of all successors s to succIn[n]
-				
-				for (CFNode successor : node.succ) {
-					if (node.succIn.addAll(successor.in)) {
-						nodeHasChanged = true;
+		// solve in[b] = use[b] + (out[b] - def[b]) over the blocks with a
+		// worklist, starting in post-order (which is reverse post-order of
+		// the reversed graph, so most blocks are visited after their
+		// successors). Blocks which can't be reached still get their
+		// liveness, as before, after all the rest.
+		List<ControlFlowGraph.Block> blocks = cfg.getBlocks();
+		List<ControlFlowGraph.Block> rpo = cfg.getReversePostOrder();
+		boolean[] queued = new boolean[blocks.size()];
+		ArrayDeque<ControlFlowGraph.Block> worklist = new ArrayDeque<ControlFlowGraph.Block>();
+		for (int i=rpo.size()-1; i>=0; i--) {
+			worklist.add(rpo.get(i));
+			queued[rpo.get(i).getIndex()] = true;
+		}
+		for (ControlFlowGraph.Block b : blocks) {
+			if (!b.isReachable()) {
+				worklist.add(b);
+				queued[b.getIndex()] = true;
+			}
+		}
+
+		while (!worklist.isEmpty()) {
+			ControlFlowGraph.Block b = worklist.poll();
+			queued[b.getIndex()] = false;
+			BlockSets sets = blockSets[b.getIndex()];
+
+			for (int si : b.getSuccs())
+				Bits.or(sets.out, blockSets[si].in);
+
+			if (Bits.transfer(sets.in, sets.use, sets.out, sets.def)) {
+				for (int pi : b.getPreds()) {
+					if (!queued[pi]) {
+						worklist.add(blocks.get(pi));
+						queued[pi] = true;
 					}
 				}
-				
-				// assumption: in[n] already contains use[n]
-				
-				// update in[n] if out[n] has changed
-				if (nodeHasChanged) {
-					for (Variable outVar : node.succIn) {
-						if (node.def != outVar) {
-							node.in.add(outVar);
-						}
-					}					
-					cfgHasChanged = true;
-				}
 			}
-		} while (cfgHasChanged);
+		}
+
+		// then out[n] of each statement, from the end of its block back
+		long[] live = Bits.make(capacity);
+		for (ControlFlowGraph.Block b : blocks) {
+			Bits.copy(live, blockSets[b.getIndex()].out);
+			for (int i=b.getEnd()-1; i>=b.getStart(); i--) {
+				CFNode node = cfnodes.get(i);
+				Bits.copy(node.succIn, live);
+				if (node.def != null)
+					Bits.clear(live, node.def.id);
+				Bits.or(live, node.use);
+			}
+		}
 	}
 	
 	
 	private void initTempNodes() {
 		// create a tempnode for each variable
+		idToTempnode = new TempNode[capacity];
+		interference = new long[matrixWords(capacity)];
 		for (Variable var : variables) {
 			TempNode newTempnode = new TempNode(var);
 			tempnodes.add(newTempnode);
-			varToTempnodeMap.put(var, newTempnode);
+			idToTempnode[var.id] = newTempnode;
 		}
 	}
 	
@@ -416,58 +667,505 @@ public class RegisterAllocator {
 	private void buildInterference() {
 		// for each cfnode, add edges to interference graph according to
 		// succIn[n], which is the union of in[s] of all its successors
-		Set<Variable> succInCopy = new HashSet<Variable>();
-		for (CFNode cfnode : cfnodes) {
-			// make a copy of succIn[n]
-			succInCopy.clear();
-			succInCopy.addAll(cfnode.succIn);
-			
-			// at each iteration, remove an anchor node from succIn[n] and
-			// connect that node to all remaining nodes in in[n] with an edge
-			for (Variable anchorVar : cfnode.succIn) {
-				TempNode anchorNode = varToTempnodeMap.get(anchorVar);
-				succInCopy.remove(anchorVar);
-				for (Variable var : succInCopy) {
-					TempNode node = varToTempnodeMap.get(var);
-					anchorNode.adj.add(node);
-					anchorNode.degree++;
-					node.adj.add(anchorNode);
-					node.degree++;
+		for (CFNode cfnode : cfnodes)
+			interfere(cfnode);
+	}
+
+	// add the edges this cfnode puts in the interference graph
+	private void interfere(CFNode cfnode) {
+		int[] succIn = Bits.members(cfnode.succIn);
+		
+		// connect each node in succIn[n] to all the nodes after it
+		for (int i=0; i<succIn.length; i++) {
+			TempNode anchorNode = idToTempnode[succIn[i]];
+			for (int j=i+1; j<succIn.length; j++)
+				addEdge(anchorNode, idToTempnode[succIn[j]]);
+		}
+		
+		// connect node of def[n] to all nodes in succIn[n] if needed
+		if (cfnode.def!=null && !Bits.get(cfnode.succIn, cfnode.def.id)) {
+			TempNode anchorNode = idToTempnode[cfnode.def.id];
+			for (int id : succIn)
+				addEdge(anchorNode, idToTempnode[id]);
+		}
+	}
+
+	private void addEdge(TempNode a, TempNode b) {
+		a.edges++;
+		b.edges++;
+		if (!interferes(a, b))
+			connect(a, b);
+	}
+
+	// put a and b next to each other in both representations
+	private void connect(TempNode a, TempNode b) {
+		long bit = matrixBit(a.var.id, b.var.id);
+		interference[(int) (bit >>> 6)] |= 1L << bit;
+		a.addAdj(b.var.id);
+		b.addAdj(a.var.id);
+	}
+
+	private boolean interferes(TempNode a, TempNode b) {
+		long bit = matrixBit(a.var.id, b.var.id);
+		return (interference[(int) (bit >>> 6)] & (1L << bit)) != 0;
+	}
+
+	// the bit of the pair a, b (a != b) in the interference matrix
+	private static long matrixBit(int a, int b) {
+		if (a < b) {
+			int t = a; a = b; b = t;
+		}
+		return (long) a * (a - 1) / 2 + b;
+	}
+
+	// the words of a matrix over this many variables
+	private static int matrixWords(int capacity) {
+		long bits = (long) capacity * (capacity - 1) / 2;
+		return (int) ((bits + 63) >>> 6);
+	}
+	
+	
+	// does this ssa call out (to a method or the runtime), clobbering every
+	// register calls don't leave alone?
+	private static boolean isCall(SSAStatement ssa) {
+		switch (ssa.getOp()) {
+		case Call:
+		case NewObj:
+		case NewIntArray:
+		case Print:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// the variables live across a call, other than what it defines
+	private long[] acrossCalls() {
+		long[] ret = Bits.make(capacity);
+		for (int i=0; i<block.size(); i++) {
+			if (!isCall(block.get(i)))
+				continue;
+			CFNode node = cfnodes.get(i);
+			boolean defAcross = node.def == null || Bits.get(ret, node.def.id);
+			Bits.or(ret, node.succIn);
+			if (!defAcross)
+				Bits.clear(ret, node.def.id);
+		}
+		return ret;
+	}
+
+	// the registers to try, in order: those calls leave alone go first for
+	// a variable live across a call, and last for any other
+	private int[] registerOrder(boolean acrossCall, int numRegisters) {
+		int[] ret = new int[numRegisters];
+		int n = 0;
+		for (int pass=0; pass<2; pass++) {
+			for (int r=0; r<numRegisters; r++) {
+				if (isCalleeSaved(r) == (acrossCall == (pass == 0)))
+					ret[n++] = r;
+			}
+		}
+		return ret;
+	}
+
+	private boolean isCalleeSaved(int reg) {
+		return calleeSaved != null && reg < calleeSaved.length && calleeSaved[reg];
+	}
+
+	// is this ssa a move from its left (if it isn't given the same register)?
+	private static boolean isCopy(SSAStatement ssa) {
+		switch (ssa.getOp()) {
+		case VarAssg:
+			return true;
+		case Arg:
+			// Args beyond the registers are stored instead
+			return !ssa.registerPinned() || ssa.getRegister() >= 0;
+		default:
+			return false;
+		}
+	}
+	
+	
+	/* Conservatively coalesce the variables of copies which don't interfere,
+	 * so that they get the same register and the move goes away. Two
+	 * ordinary variables are merged if fewer than numRegisters neighbours of
+	 * the result have significant degree (Briggs); a variable is merged into
+	 * one pinned to a register if each of its neighbours already interferes
+	 * with that one or has insignificant degree (George). Degrees here are
+	 * numbers of neighbours, and neighbours pinned to a register always
+	 * count as significant. Nothing live across a call is merged into a
+	 * register calls don't leave alone. */
+	private void coalesce(int numRegisters) {
+		List<Variable> merged = new ArrayList<Variable>();
+		long[] across = calleeSaved == null ? null : acrossCalls();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (SSAStatement ssa : block) {
+				if (!isCopy(ssa))
+					continue;
+				Variable a = ssaToVarMap.get(ssa);
+				Variable b = ssaToVarMap.get(ssa.getLeft());
+				if (a == b)
+					continue;
+				TempNode aNode = idToTempnode[a.id];
+				TempNode bNode = idToTempnode[b.id];
+				if (interferes(aNode, bNode) || !canCoalesce(aNode, bNode, numRegisters, across))
+					continue;
+
+				// keep the pinned one, if either is
+				if (b.registerPinned) {
+					Variable v = a; a = b; b = v;
+					TempNode t = aNode; aNode = bNode; bNode = t;
 				}
+				if (across != null && Bits.get(across, b.id))
+					Bits.set(across, a.id);
+				for (int i=0; i<bNode.numAdj; i++) {
+					TempNode adjNode = idToTempnode[bNode.adj[i]];
+					adjNode.removeAdj(b.id);
+					if (!interferes(aNode, adjNode))
+						connect(aNode, adjNode);
+				}
+				aNode.edges += bNode.edges;
+				tempnodes.remove(bNode);
+				idToTempnode[b.id] = null;
+				unify(a, b);
+				merged.add(b);
+				changed = true;
 			}
-			
-			// connect node of def[n] to all nodes in succIn[n] if needed
-			if (cfnode.def!=null && !cfnode.succIn.contains(cfnode.def)) {
-				TempNode anchorNode = varToTempnodeMap.get(cfnode.def);
-				for (Variable var : cfnode.succIn) {
-					TempNode node = varToTempnodeMap.get(var);
-					anchorNode.adj.add(node);
-					anchorNode.degree++;
-					node.adj.add(anchorNode);
-					node.degree++;
+		}
+		if (merged.isEmpty())
+			return;
+
+		// then renumber the merged variables in the cfnodes
+		long[] mergedBits = Bits.make(capacity);
+		int[] into = new int[numIds];
+		for (Variable var : merged) {
+			Bits.set(mergedBits, var.id);
+			into[var.id] = ssaToVarMap.get(var.master).id;
+		}
+		for (CFNode node : cfnodes) {
+			if (node.def != null && Bits.get(mergedBits, node.def.id))
+				node.def = ssaToVarMap.get(node.def.master);
+			renumber(node.use, mergedBits, into);
+			renumber(node.succIn, mergedBits, into);
+		}
+	}
+
+	private boolean canCoalesce(TempNode a, TempNode b, int numRegisters, long[] across) {
+		if (a.var.registerPinned && b.var.registerPinned)
+			return false;
+
+		if (a.var.registerPinned || b.var.registerPinned) {
+			TempNode pinned = a.var.registerPinned ? a : b;
+			TempNode other = (pinned == a) ? b : a;
+			int reg = pinned.var.register;
+			if (reg < 0)
+				return false;
+			if (across != null && !isCalleeSaved(reg) && Bits.get(across, other.var.id))
+				return false;
+			for (int i=0; i<other.numAdj; i++) {
+				TempNode adjNode = idToTempnode[other.adj[i]];
+				if (adjNode.var.registerPinned) {
+					if (adjNode.var.register == reg)
+						return false;
+				} else if (adjNode.numAdj >= numRegisters && !interferes(pinned, adjNode)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		if (a.numAdj + b.numAdj < numRegisters)
+			return true;
+		int significant = 0;
+		for (int i=0; i<a.numAdj; i++) {
+			if (significant(idToTempnode[a.adj[i]], b, numRegisters) && ++significant >= numRegisters)
+				return false;
+		}
+		for (int i=0; i<b.numAdj; i++) {
+			TempNode adjNode = idToTempnode[b.adj[i]];
+			if (!interferes(a, adjNode) && significant(adjNode, a, numRegisters)
+					&& ++significant >= numRegisters)
+				return false;
+		}
+		return true;
+	}
+
+	// is this neighbour of a merged node significant, given the other half
+	// of the merge (a neighbour of both loses one)?
+	private boolean significant(TempNode node, TempNode other, int numRegisters) {
+		if (node.var.registerPinned)
+			return true;
+		int degree = node.numAdj;
+		if (interferes(node, other))
+			degree--;
+		return degree >= numRegisters;
+	}
+
+	// move each merged variable's bit in b to the variable it was merged into
+	private static void renumber(long[] b, long[] mergedBits, int[] into) {
+		for (int i=0; i<mergedBits.length; i++) {
+			long w = b[i] & mergedBits[i];
+			if (w == 0)
+				continue;
+			b[i] &= ~w;
+			while (w != 0) {
+				Bits.set(b, into[(i << 6) + Long.numberOfTrailingZeros(w)]);
+				w &= w - 1;
+			}
+		}
+	}
+	
+	
+	/* Bring variables, liveness and interference up to date with the Loads
+	 * and Stores performSpills just added, without starting over, so that
+	 * they end up just as a rebuild from scratch would make them.
+	 *
+	 * Every use of a spilled variable now gets its value from a Load (or
+	 * the constant it's recomputed from), or from something earlier in the
+	 * same block, so it falls apart into its defs and its Unifys (each with
+	 * its Loads), none of them live into another block.
+	 * Everything else is live exactly where it was, so out[n] of each old
+	 * statement just loses the spilled variables and gains the pieces live
+	 * there, the edges between the rest stay, and only the pieces and new
+	 * statements add edges. */
+	private void updateAfterSpills(Set<Variable> spilled) {
+		cfg = method.getCFG();
+
+		Set<SSAStatement> added = new HashSet<SSAStatement>();
+		for (SSAStatement ssa : block) {
+			if (!ssaToCfnodeMap.containsKey(ssa))
+				added.add(ssa);
+		}
+
+		// make sure the bit sets have room for every new variable
+		int needed = numIds + added.size();
+		for (Variable var : spilled)
+			needed += var.v.size();
+		if (needed > capacity) {
+			capacity = 2 * needed;
+			int words = Bits.make(capacity).length;
+			for (CFNode node : cfnodes) {
+				node.use = Arrays.copyOf(node.use, words);
+				node.succIn = Arrays.copyOf(node.succIn, words);
+			}
+			idToVar = Arrays.copyOf(idToVar, capacity);
+			idToTempnode = Arrays.copyOf(idToTempnode, capacity);
+			interference = Arrays.copyOf(interference, matrixWords(capacity));
+		}
+
+		long[] spilledBits = Bits.make(capacity);
+		for (Variable var : spilled)
+			Bits.set(spilledBits, var.id);
+
+		// split the spilled variables up, in body order as unifyVariables
+		// would
+		for (SSAStatement ssa : block) {
+			Variable var = ssaToVarMap.get(ssa);
+			if (var == null || !Bits.get(spilledBits, var.id))
+				continue;
+			newVariable(ssa);
+		}
+
+		// make the new statements' variables: a Load for a Unify is unified
+		// with it
+		for (int i=0; i<block.size(); i++) {
+			SSAStatement ssa = block.get(i);
+			if (!added.contains(ssa))
+				continue;
+			Variable var = null;
+			if (isReload(ssa)) {
+				SSAStatement user = block.get(i+1);
+				for (int j=i+2; added.contains(user); j++)
+					user = block.get(j);
+				if (user.getOp() == SSAStatement.Op.Unify) {
+					var = ssaToVarMap.get(user);
+					var.v.add(ssa);
+					ssaToVarMap.put(ssa, var);
+				}
+			}
+			if (var == null)
+				newVariable(ssa);
+			ssaToCfnodeMap.put(ssa, new CFNode(ssa));
+		}
+
+		// how many edges each remaining variable loses with the spilled ones
+		int[] lost = new int[capacity];
+
+		List<CFNode> newCfnodes = new ArrayList<CFNode>();
+		for (SSAStatement ssa : block)
+			newCfnodes.add(ssaToCfnodeMap.get(ssa));
+
+		// nothing spilled (nor any piece of it) is live from one block to
+		// another, so each block's liveness can be redone backwards from
+		// what was live out of it, less the spilled variables
+		long[] live = Bits.make(capacity);
+		long[] fresh = Bits.make(capacity);
+		for (ControlFlowGraph.Block b : cfg.getBlocks()) {
+			int last = b.getEnd()-1;
+			while (added.contains(block.get(last)))
+				last--;
+			Bits.copy(live, newCfnodes.get(last).succIn);
+			for (int i=0; i<spilledBits.length; i++)
+				live[i] &= ~spilledBits[i];
+
+			for (int i=b.getEnd()-1; i>=b.getStart(); i--) {
+				SSAStatement ssa = block.get(i);
+				CFNode node = newCfnodes.get(i);
+
+				if (added.contains(ssa)) {
+					addUses(ssa);
+					Bits.copy(node.succIn, live);
+					interfere(node);
+
+				} else {
+					// an old statement: each spilled variable live after it
+					// took an edge to everything else live, as did a
+					// spilled def which isn't
+					int gone = 0;
+					for (int w=0; w<spilledBits.length; w++)
+						gone += Long.bitCount(node.succIn[w] & spilledBits[w]);
+					boolean spillDef = node.def != null && Bits.get(spilledBits, node.def.id);
+					boolean defEdges = node.def != null && !Bits.get(node.succIn, node.def.id);
+					if (gone > 0 || (spillDef && defEdges)) {
+						int by = gone + (spillDef && defEdges ? 1 : 0);
+						for (int w=0; w<spilledBits.length; w++)
+							fresh[w] = node.succIn[w] & ~spilledBits[w];
+						for (int id : Bits.members(fresh))
+							lost[id] += by;
+						if (defEdges && !spillDef)
+							lost[node.def.id] += gone;
+					}
+
+					// what's newly live after it is the pieces and reloads
+					// of spilled variables, with an edge to everything
+					// else live, and a def of a spilled variable now
+					// defines its own piece
+					boolean any = false;
+					for (int w=0; w<live.length; w++) {
+						fresh[w] = live[w] & ~node.succIn[w];
+						any |= fresh[w] != 0;
+					}
+					if (spillDef)
+						node.def = ssaToVarMap.get(ssa);
+					defEdges = node.def != null && !Bits.get(live, node.def.id);
+					if (any || (spillDef && defEdges)) {
+						int[] out = Bits.members(live);
+						for (int id : Bits.members(fresh)) {
+							TempNode anchorNode = idToTempnode[id];
+							for (int other : out) {
+								if (other != id && !(other < id && Bits.get(fresh, other)))
+									addEdge(anchorNode, idToTempnode[other]);
+							}
+						}
+						if (defEdges) {
+							TempNode defNode = idToTempnode[node.def.id];
+							for (int id : spillDef ? out : Bits.members(fresh))
+								addEdge(defNode, idToTempnode[id]);
+						}
+					}
+					Bits.copy(node.succIn, live);
+
+					// and it uses the reloads now
+					boolean reloaded = false;
+					for (int w=0; w<spilledBits.length; w++)
+						reloaded |= (node.use[w] & spilledBits[w]) != 0;
+					if (reloaded) {
+						Arrays.fill(node.use, 0);
+						addUses(ssa);
+					}
 				}
+
+				// so what's live before it
+				if (node.def != null)
+					Bits.clear(live, node.def.id);
+				Bits.or(live, node.use);
 			}
 		}
+		cfnodes = newCfnodes;
+
+		// the spilled variables themselves are gone now
+		for (Variable var : spilled) {
+			TempNode node = idToTempnode[var.id];
+			for (int i=0; i<node.numAdj; i++)
+				idToTempnode[node.adj[i]].removeAdj(var.id);
+			idToTempnode[var.id] = null;
+			tempnodes.remove(node);
+			variables.remove(var);
+		}
+		for (TempNode node : tempnodes)
+			node.edges -= lost[node.var.id];
+	}
+
+	// a new variable for this statement, as initVariables makes them
+	private Variable newVariable(SSAStatement ssa) {
+		Variable var = new Variable(ssa);
+		var.id = numIds++;
+		idToVar[var.id] = var;
+		variables.add(var);
+		ssaToVarMap.put(ssa, var);
+		TempNode tempnode = new TempNode(var);
+		tempnodes.add(tempnode);
+		idToTempnode[var.id] = tempnode;
+		return var;
+	}
+	
+	
+	// the cost of spilling each tempnode: the Loads and Stores it would take
+	// (just the recomputing, for a constant), each weighted by 10 to the
+	// loop depth it's at. A variable live after no more than one statement
+	// (as are the Loads and Stores of earlier spills) can't be made any
+	// shorter by spilling it, so it costs too much.
+	private void spillCosts() {
+		double[] loadCost = new double[numIds];
+		double[] storeCost = new double[numIds];
+		int[] liveAfter = new int[numIds];
+		for (int i=0; i<block.size(); i++) {
+			CFNode node = cfnodes.get(i);
+			double weight = Math.pow(10, cfg.blockOf(i).getLoopDepth());
+			for (SSAStatement usedSsa : operands(block.get(i)))
+				loadCost[ssaToVarMap.get(usedSsa).id] += weight;
+			if (node.def != null && Bits.get(node.succIn, node.def.id))
+				storeCost[node.def.id] += weight;
+			for (int id : Bits.members(node.succIn))
+				liveAfter[id]++;
+		}
+
+		for (TempNode node : tempnodes) {
+			int id = node.var.id;
+			if (liveAfter[id] <= 1)
+				node.cost = Double.POSITIVE_INFINITY;
+			else if (rematerialize(node.var) != null)
+				node.cost = loadCost[id];
+			else
+				node.cost = loadCost[id] + storeCost[id];
+		}
 	}
 	
 	
 	private Set<TempNode> select(int numRegisters) {
 		
-		Set<TempNode> noRegisterNodes = new HashSet<TempNode>();
-		Set<TempNode> pinnedNodes = new HashSet<TempNode>();
+		Set<TempNode> noRegisterNodes = new LinkedHashSet<TempNode>();
+		Set<TempNode> pinnedNodes = new LinkedHashSet<TempNode>();
 		Stack<TempNode> nonSpillNodes = new Stack<TempNode>();
-		Set<TempNode> potentialSpillNodes = new HashSet<TempNode>();
+		Set<TempNode> potentialSpillNodes = new LinkedHashSet<TempNode>();
 		
+		spillCosts();
+
 		int nodesRemaining = tempnodes.size();
+		for (TempNode node : tempnodes) {
+			node.degree = node.edges;
+			node.color = 0;
+		}
 
 		
 		// remove all pinned nodes unconditionally (including those pinned to no register)
 		for (TempNode node : tempnodes) {
 			if (node.var.registerPinned) {
 				node.color = -1;
-				for (TempNode adjNode : node.adj){
-					adjNode.degree--;
-				}
+				for (int i=0; i<node.numAdj; i++)
+					idToTempnode[node.adj[i]].degree--;
 				if (node.var.register==-1)
 					noRegisterNodes.add(node);
 				else
@@ -485,31 +1183,35 @@ public class RegisterAllocator {
 			for (TempNode node : tempnodes) {
 				if (node.color!=-1 && node.degree<numRegisters) {					
 					node.color = -1;	// mark as removed from graph
-					for (TempNode adjNode : node.adj){
-						adjNode.degree--;
-					}
+					for (int i=0; i<node.numAdj; i++)
+						idToTempnode[node.adj[i]].degree--;
 					nonSpillNodes.push(node);
 					nonSpillNodeFound = true;
 					break;
 				}
 			}
 			
-			// if no such tempnode exists, remove the node with the highest
-			// degree and mark it as a potential spill
+			// if no such tempnode exists, remove the node with the lowest
+			// spill cost for its degree (or, among those which can't be
+			// spilled usefully, the highest degree) and mark it as a
+			// potential spill
 			if (!nonSpillNodeFound) {
-				int maxDegree = -1;
-				TempNode maxNode = null;
+				double minRatio = Double.POSITIVE_INFINITY;
+				TempNode minNode = null;
 				for (TempNode node : tempnodes) {
-					if (node.color!=-1 && node.degree>maxDegree) {
-						maxNode = node;
-						maxDegree = node.degree;
+					if (node.color==-1)
+						continue;
+					double ratio = node.cost / node.degree;
+					if (minNode == null || ratio < minRatio
+							|| (ratio == minRatio && node.degree > minNode.degree)) {
+						minNode = node;
+						minRatio = ratio;
 					}
 				}
-				maxNode.color = -1;
-				for (TempNode adjNode : maxNode.adj){
-					adjNode.degree--;
-				}
-				potentialSpillNodes.add(maxNode);
+				minNode.color = -1;
+				for (int i=0; i<minNode.numAdj; i++)
+					idToTempnode[minNode.adj[i]].degree--;
+				potentialSpillNodes.add(minNode);
 			}
 			
 			nodesRemaining--;
@@ -532,7 +1234,10 @@ public class RegisterAllocator {
 		}
 		
 		
-		Set<Integer> adjColors = new HashSet<Integer>();
+		Set<Integer> adjColors = new LinkedHashSet<Integer>();
+		long[] across = calleeSaved == null ? null : acrossCalls();
+		int[] acrossOrder = registerOrder(true, numRegisters);
+		int[] localOrder = registerOrder(false, numRegisters);
 		
 		// add nonspill nodes back, assigning colors to each
 		//for (TempNode node : nonSpillNodes) {
@@ -540,24 +1245,26 @@ public class RegisterAllocator {
 			
 			TempNode node = nonSpillNodes.pop();
 			
-			// set this node's color to the lowest value that's not the color
-			// of any of its adjacent nodes
+			// set this node's color to the first (as registerOrder goes)
+			// that's not the color of any of its adjacent nodes
 			adjColors.clear();
-			for (TempNode adjNode : node.adj) {
+			for (int i=0; i<node.numAdj; i++) {
+				TempNode adjNode = idToTempnode[node.adj[i]];
 				if (adjNode.color != -1)
 					adjColors.add(adjNode.color);
 			}
 			/*
 			System.out.print(node.var.master.getIndex()+" adj with");
-			for (TempNode adjNode : node.adj) {
-				System.out.print(" "+adjNode.var.master.getIndex());
+			for (int i=0; i<node.numAdj; i++) {
+				System.out.print(" "+idToVar[node.adj[i]].master.getIndex());
 			}
 			System.out.print("\n"+node.var.master.getIndex()+" is currently adj with colors");
 			for (int i : adjColors)
 					System.out.print(" "+i);
 					*/
 
-			for (int i=0; i<numRegisters; i++) {
+			int[] order = (across != null && Bits.get(across, node.var.id)) ? acrossOrder : localOrder;
+			for (int i : order) {
 				if (!adjColors.contains(i)) {
 					node.color = i;
 					setRegister(node.var, i);
@@ -567,17 +1274,26 @@ public class RegisterAllocator {
 			}
 		}
 		
-		// add potential spill nodes back.  If we get to a point where non can
-		// be added, we have actual spills
+		// add potential spill nodes back, the most costly to spill first.
+		// If we get to a point where non can be added, we have actual spills
+		List<TempNode> byCost = new ArrayList<TempNode>(potentialSpillNodes);
+		Collections.sort(byCost, new Comparator<TempNode>() {
+			public int compare(TempNode a, TempNode b) {
+				return Double.compare(b.cost, a.cost);
+			}
+		});
+		potentialSpillNodes = new LinkedHashSet<TempNode>(byCost);
 		while (!potentialSpillNodes.isEmpty()) {
 			boolean nodeAdded = false;
 			for (TempNode node : potentialSpillNodes) {
 				adjColors.clear();
-				for (TempNode adjNode : node.adj) {
+				for (int i=0; i<node.numAdj; i++) {
+					TempNode adjNode = idToTempnode[node.adj[i]];
 					if (adjNode.color != -1)
 						adjColors.add(adjNode.color);
 				}
-				for (int i=0; i<numRegisters; i++) {
+				int[] order = (across != null && Bits.get(across, node.var.id)) ? acrossOrder : localOrder;
+				for (int i : order) {
 					if (!adjColors.contains(i)) {
 						node.color = i;
 						potentialSpillNodes.remove(node);
@@ -593,16 +1309,144 @@ public class RegisterAllocator {
 				break;
 		}
 
-		//System.out.println((Variable.highestRegisterUsed+1)+" registers used, "
+		//System.out.println((highestRegisterUsed+1)+" registers used, "
 				//+potentialSpillNodes.size()+" actual spills.");
 
 		// actual spills are the remaining potentialspills that we couldn't
 		// add back in
-		Set<TempNode> actualSpills = new HashSet<TempNode>();		
+		Set<TempNode> actualSpills = new LinkedHashSet<TempNode>();		
 		actualSpills.addAll(potentialSpillNodes);
 		return actualSpills;
 	}
 	
+	private Set<Variable> linearScan(int numRegisters) {
+		// build the intervals: a variable live into or out of a block covers
+		// its start or end, and every def and use is covered. Uses come
+		// before the def in each statement, so a result can take the
+		// register of an operand it reads last (as in the interference
+		// graph, where a def only interferes with what's live after it)
+		Interval[] intervals = new Interval[idToVar.length];
+		for (int id=0; id<idToVar.length; id++)
+			intervals[id] = new Interval(idToVar[id]);
+		for (ControlFlowGraph.Block b : cfg.getBlocks()) {
+			BlockSets sets = blockSets[b.getIndex()];
+			for (int id : Bits.members(sets.in))
+				intervals[id].cover(2*b.getStart());
+			for (int id : Bits.members(sets.out))
+				intervals[id].cover(2*(b.getEnd()-1) + 1);
+		}
+		for (int i=0; i<cfnodes.size(); i++) {
+			CFNode node = cfnodes.get(i);
+			if (node.def != null)
+				intervals[node.def.id].cover(2*i + 1);
+			for (int id : Bits.members(node.use))
+				intervals[id].cover(2*i);
+		}
+
+		// pinned variables get their register unconditionally (as when
+		// coloring); everything else must stay clear of them
+		List<Interval> unpinned = new ArrayList<Interval>();
+		List<List<Interval>> pinnedByRegister = new ArrayList<List<Interval>>();
+		for (int r=0; r<numRegisters; r++)
+			pinnedByRegister.add(new ArrayList<Interval>());
+		for (Interval i : intervals) {
+			if (i.end < 0)
+				continue;
+			if (i.var.registerPinned) {
+				setRegister(i.var, i.var.register);
+				if (i.var.register >= 0 && i.var.register < numRegisters)
+					pinnedByRegister.get(i.var.register).add(i);
+			} else {
+				unpinned.add(i);
+			}
+		}
+		Comparator<Interval> byStart = new Comparator<Interval>() {
+			public int compare(Interval a, Interval b) {
+				return a.start != b.start ? a.start - b.start : a.var.id - b.var.id;
+			}
+		};
+		Collections.sort(unpinned, byStart);
+		for (List<Interval> pinned : pinnedByRegister)
+			Collections.sort(pinned, byStart);
+		int[] pinnedFrom = new int[numRegisters];
+
+		long[] across = calleeSaved == null ? null : acrossCalls();
+		int[] acrossOrder = registerOrder(true, numRegisters);
+		int[] localOrder = registerOrder(false, numRegisters);
+
+		Set<Variable> spills = new LinkedHashSet<Variable>();
+		Interval[] active = new Interval[numRegisters];
+		boolean[] blocked = new boolean[numRegisters];
+		for (Interval cur : unpinned) {
+			// expire the intervals that ended, and find which registers are
+			// pinned somewhere in this one
+			for (int r=0; r<numRegisters; r++) {
+				if (active[r] != null && active[r].end < cur.start)
+					active[r] = null;
+
+				List<Interval> pinned = pinnedByRegister.get(r);
+				while (pinnedFrom[r] < pinned.size() && pinned.get(pinnedFrom[r]).end < cur.start)
+					pinnedFrom[r]++;
+				blocked[r] = false;
+				for (int pi=pinnedFrom[r]; pi<pinned.size() && pinned.get(pi).start <= cur.end; pi++) {
+					if (pinned.get(pi).overlaps(cur)) {
+						blocked[r] = true;
+						break;
+					}
+				}
+			}
+
+			// take the first free register, as registerOrder goes
+			int reg = -1;
+			int[] order = (across != null && Bits.get(across, cur.var.id)) ? acrossOrder : localOrder;
+			for (int r : order) {
+				if (active[r] == null && !blocked[r]) {
+					reg = r;
+					break;
+				}
+			}
+
+			// or, if none is free, spill whichever interval ends last. One
+			// which can't get any shorter never is: if only such intervals
+			// hold the registers another one could have, they are all
+			// needed at once and spilling any of them would just come back
+			// to the same place (which takes fewer than
+			// MIN_LINEAR_SCAN_REGISTERS).
+			if (reg < 0) {
+				boolean curFixed = !cur.canShrink();
+				Interval victim = null;
+				for (int r=0; r<numRegisters; r++) {
+					Interval a = active[r];
+					if (a == null || blocked[r] || !a.canShrink())
+						continue;
+					if (victim == null || a.end > victim.end)
+						victim = a;
+				}
+				if (victim != null && (victim.end > cur.end || curFixed)) {
+					reg = victim.register;
+					active[reg] = null;
+					spills.add(victim.var);
+				} else if (curFixed) {
+					throw new Error("Not enough registers for " + cur.var.master
+							+ ": linear scan needs at least " + MIN_LINEAR_SCAN_REGISTERS
+							+ " free registers, not " + numRegisters);
+				} else {
+					spills.add(cur.var);
+					continue;
+				}
+			}
+
+			cur.register = reg;
+			active[reg] = cur;
+		}
+
+		for (Interval i : unpinned) {
+			if (!spills.contains(i.var))
+				setRegister(i.var, i.register);
+		}
+		return spills;
+	}
+	
 	private void setRegister(Variable var, int reg) {
 		for (SSAStatement ssa : var.v) {
 			
@@ -622,13 +1466,13 @@ public class RegisterAllocator {
 			*/
 		}
 		
-		if (reg > Variable.highestRegisterUsed)
-			Variable.highestRegisterUsed = reg;
+		if (reg > highestRegisterUsed)
+			highestRegisterUsed = reg;
 	}
 	
 	
 	
-	private void performSpills(Set<TempNode> actualSpills) {
+	private void performSpills(Set<Variable> actualSpills, int freeRegisters) {
 		
 		// find the lowest unused stack offset that's not already being used
 		int lowestUnusedStackOffset = 0;
@@ -641,80 +1485,232 @@ public class RegisterAllocator {
 		}	
 		
 		// get spilled variables from spill nodes, assign each a unique
-		// stack offset starting at lowestUnusedStackOffset
+		// stack offset starting at lowestUnusedStackOffset. Those which are
+		// just a constant (or this) get none: they're recomputed instead
 		Map<Variable, Integer> varToOffset = new HashMap<Variable, Integer>();
+		Map<Variable, SSAStatement> varToRemat = new HashMap<Variable, SSAStatement>();
 		int stackOffset = lowestUnusedStackOffset;
-		for (TempNode node : actualSpills) {
-			varToOffset.put(node.var, stackOffset);
-			stackOffset++;
+		for (Variable var : actualSpills) {
+			SSAStatement remat = rematerialize(var);
+			if (remat != null) {
+				varToRemat.put(var, remat);
+			} else {
+				varToOffset.put(var, stackOffset);
+				stackOffset++;
+			}
+		}
+
+		// a variable spilled for the first time is reloaded once per basic
+		// block where that fits: later uses in the block take whatever last
+		// had its value (a reload, or a def or Unify if it's not live out of
+		// the block), unless that would keep more than freeRegisters live
+		// somewhere in between. One spilled again is reloaded right before
+		// every use instead, so that it does get shorter.
+		Set<Variable> reuse = new HashSet<Variable>();
+		long[] spilledBits = Bits.make(capacity);
+		for (Variable var : actualSpills) {
+			Bits.set(spilledBits, var.id);
+			boolean again = false;
+			for (SSAStatement ssa : var.v) {
+				if (spilledBefore.contains(ssa) || isReload(ssa))
+					again = true;
+			}
+			if (!again)
+				reuse.add(var);
+			spilledBefore.addAll(var.v);
 		}
 		
 		// go through block, insert stores and loads
-		ListIterator<SSAStatement> blockIter = block.listIterator();
-		while (blockIter.hasNext()) {
-			
-			SSAStatement ssa = blockIter.next();
-			CFNode node = ssaToCfnodeMap.get(ssa);
-			
-			// add load instructions before this ssa for each spilled var
-			// it uses, rewrite the ssa to reference the loads instead
-			blockIter.previous();
-
-			SSAStatement left = ssa.getLeft();
-			if (left != null) {
-				Integer offset = varToOffset.get(ssaToVarMap.get(left));
-				if (offset != null) {
-					SSAStatement loadSsa = new SSAStatement(null,
-							SSAStatement.Op.Load, offset.intValue());
-					blockIter.add(loadSsa);
-					ssa.setLeft(loadSsa);
-				}
-			}
-			SSAStatement right = ssa.getRight();
-			if (right != null) {
-				Integer offset = varToOffset.get(ssaToVarMap.get(right));
-				if (offset != null) {
-					SSAStatement loadSsa = new SSAStatement(null,
-							SSAStatement.Op.Load, offset.intValue());
-					blockIter.add(loadSsa);
-					ssa.setRight(loadSsa);
-				}
+		List<SSAStatement> newBlock = new ArrayList<SSAStatement>();
+		Set<SSAStatement> deadStores = new HashSet<SSAStatement>();
+		for (ControlFlowGraph.Block b : cfg.getBlocks()) {
+			// what has each reused variable's value here (and where it was
+			// last defined or used), and its Store which nothing has been
+			// reloaded from yet
+			Map<Variable, SSAStatement> avail = new HashMap<Variable, SSAStatement>();
+			Map<Variable, Integer> availAt = new HashMap<Variable, Integer>();
+			Map<Variable, SSAStatement> unread = new HashMap<Variable, SSAStatement>();
+
+			// how many variables are live after each statement of the block
+			long[] blockOut = ssaToCfnodeMap.get(block.get(b.getEnd()-1)).succIn;
+			int[] pressure = new int[b.getEnd() - b.getStart()];
+			for (int i=b.getStart(); i<b.getEnd(); i++) {
+				long[] out = ssaToCfnodeMap.get(block.get(i)).succIn;
+				for (int w=0; w<out.length; w++)
+					pressure[i - b.getStart()] += Long.bitCount(out[w] & ~spilledBits[w]);
 			}
-				
-			SSAStatement.Op op = ssa.getOp();
-			if (op==SSAStatement.Op.Call) {
-				List<SSAStatement> args = ((SSACall)ssa.getSpecial()).getArgs();
-				for (int i=0; i<args.size(); i++) {
-					SSAStatement arg = args.get(i);
-					Integer offset = varToOffset.get(ssaToVarMap.get(arg));
-					if (offset != null) {
-						SSAStatement loadSsa = new SSAStatement(null,
-								SSAStatement.Op.Load, offset.intValue());
-						blockIter.add(loadSsa);
-						args.set(i, loadSsa);
+
+			for (int i=b.getStart(); i<b.getEnd(); i++) {
+				SSAStatement ssa = block.get(i);
+				CFNode node = ssaToCfnodeMap.get(ssa);
+				SSAStatement.Op op = ssa.getOp();
+
+				// each spilled var it uses comes from a load put before it
+				// (a Unify's own, since they're unified with it), or what
+				// already has it
+				boolean join = op == SSAStatement.Op.Unify || op == SSAStatement.Op.Alias;
+				List<SSAStatement> used = operands(ssa);
+				boolean changed = false;
+				for (int u=0; u<used.size(); u++) {
+					Variable var = ssaToVarMap.get(used.get(u));
+					if (!actualSpills.contains(var))
+						continue;
+					SSAStatement from = join ? null : avail.get(var);
+					if (from != null && !extend(pressure, availAt.get(var) - b.getStart(),
+							i - b.getStart(), freeRegisters))
+						from = null;
+					if (from == null) {
+						from = reload(used.get(u), varToOffset, varToRemat);
+						newBlock.add(from);
+						if (!join && !reuse.contains(var))
+							beforeUse.add(from);
+						unread.remove(var);
+						if (!join && reuse.contains(var))
+							avail.put(var, from);
 					}
+					if (!join && reuse.contains(var))
+						availAt.put(var, i);
+					used.set(u, from);
+					changed = true;
 				}
-			} else if (op==SSAStatement.Op.IndexAssg) {
-				SSAStatement index = (SSAStatement)ssa.getSpecial();
-				Integer offset = varToOffset.get(ssaToVarMap.get(index));
-				if (offset != null) {
-					SSAStatement loadSsa = new SSAStatement(null,
-							SSAStatement.Op.Load, offset.intValue());
-					blockIter.add(loadSsa);
-					ssa.setSpecial(loadSsa);
+				if (changed)
+					setOperands(ssa, used);
+				newBlock.add(ssa);
+
+				// add store instructions after this ssa if it defines a
+				// spilled var and that var is used after this node. One
+				// overwritten before anything reloads from it is dead
+				Variable var = ssaToVarMap.get(ssa);
+				if (!actualSpills.contains(var))
+					continue;
+				if (reuse.contains(var) && !Bits.get(blockOut, var.id)) {
+					avail.put(var, ssa);
+					availAt.put(var, i);
+				} else {
+					avail.remove(var);
+				}
+				if (node.def != null && varToOffset.containsKey(var)
+						&& Bits.get(node.succIn, var.id)) {
+					SSAStatement store = new SSAStatement(null, SSAStatement.Op.Store,
+							ssa, null, varToOffset.get(var));
+					newBlock.add(store);
+					if (reuse.contains(var)) {
+						SSAStatement overwritten = unread.put(var, store);
+						if (overwritten != null)
+							deadStores.add(overwritten);
+					}
 				}
 			}
-			
-			blockIter.next();
-			
-			// add store instructions after this ssa if it defines a spilled var
-			// and that var is used after this node
-			if (node.def!=null && varToOffset.containsKey(node.def)
-					&& node.succIn.contains(node.def)) {
-				blockIter.add(new SSAStatement(null, SSAStatement.Op.Store,
-						ssa, null, varToOffset.get(node.def)));
-			}			
+
+			// and so is one no later block reloads from either
+			for (Map.Entry<Variable, SSAStatement> e : unread.entrySet()) {
+				if (!Bits.get(blockOut, e.getKey().id))
+					deadStores.add(e.getValue());
+			}
+		}
+
+		if (!deadStores.isEmpty())
+			newBlock.removeAll(deadStores);
+		block = newBlock;
+	}
+
+	// keep one more variable live after the statements [from, to) of a
+	// block, if that leaves each with no more than freeRegisters
+	private static boolean extend(int[] pressure, int from, int to, int freeRegisters) {
+		for (int j=from; j<to; j++) {
+			if (pressure[j] >= freeRegisters)
+				return false;
 		}
+		for (int j=from; j<to; j++)
+			pressure[j]++;
+		return true;
+	}
+
+	// put back the ssas this ssa refers to, in the order operands gave them
+	private static void setOperands(SSAStatement ssa, List<SSAStatement> usedSsas) {
+		int u = 0;
+		switch (ssa.getOp()) {
+		case Call:
+			List<SSAStatement> args = ((SSACall)ssa.getSpecial()).getArgs();
+			for (int i=0; i<args.size(); i++)
+				args.set(i, usedSsas.get(u++));
+			break;
+		case IndexAssg:
+			ssa.setSpecial(usedSsas.get(u++));
+			break;
+		default:
+		}
+
+		if (ssa.getLeft() != null)
+			ssa.setLeft(usedSsas.get(u++));
+		if (ssa.getRight() != null)
+			ssa.setRight(usedSsas.get(u++));
+	}
+
+	// what to put before a use of used if its variable is spilled: a Load
+	// from its stack slot, or the constant it's recomputed from again
+	private SSAStatement reload(SSAStatement used, Map<Variable, Integer> varToOffset,
+			Map<Variable, SSAStatement> varToRemat) {
+		Variable var = ssaToVarMap.get(used);
+		Integer offset = varToOffset.get(var);
+		if (offset != null) {
+			// with the type of what it loads, which calls need
+			SSAStatement load = new SSAStatement(null, SSAStatement.Op.Load, offset.intValue());
+			load.setType(used.getType());
+			return load;
+		}
+
+		SSAStatement remat = varToRemat.get(var);
+		if (remat == null)
+			return null;
+		SSAStatement ret = new SSAStatement(remat.getASTNode(), remat.getOp(), remat.getSpecial());
+		ret.setType(remat.getType());
+		reloads.add(ret);
+		return ret;
+	}
+
+	// if every def of this variable gives the same constant (or this),
+	// possibly through copies, the def to recompute it from
+	private SSAStatement rematerialize(Variable var) {
+		return rematerialize(var, new HashSet<Variable>());
+	}
+
+	private SSAStatement rematerialize(Variable var, Set<Variable> visiting) {
+		if (var.registerPinned || !visiting.add(var))
+			return null;
+		SSAStatement remat = null;
+		for (SSAStatement ssa : var.v) {
+			SSAStatement from;
+			switch (ssa.getOp()) {
+			case This:
+			case Null:
+			case Int:
+			case Boolean:
+				from = ssa;
+				break;
+			case VarAssg:
+				Variable leftVar = ssaToVarMap.get(ssa.getLeft());
+				if (leftVar == var)
+					continue;
+				from = rematerialize(leftVar, visiting);
+				if (from == null)
+					return null;
+				break;
+			default:
+				return null;
+			}
+			if (remat == null)
+				remat = from;
+			else if (remat.getOp() != from.getOp()
+					|| (from.getOp() != SSAStatement.Op.This && !remat.getSpecial().equals(from.getSpecial())))
+				return null;
+		}
+		return remat;
+	}
+
+	// is this a Load, or a recomputed constant, put in by performSpills?
+	private boolean isReload(SSAStatement ssa) {
+		return ssa.getOp() == SSAStatement.Op.Load || reloads.contains(ssa);
 	}
 	
 	
@@ -724,17 +1720,25 @@ public class RegisterAllocator {
 	// for testing!!!
 	private void printCfg() {
 		System.out.format("\n%-50s%-40s%-40s\n", "SSA", "in[n]", "union of in[s]");
+		long[] in = Bits.make(capacity);
 		for (SSAStatement ssa : block) {
 			CFNode node = ssaToCfnodeMap.get(ssa);
+			Bits.copy(in, node.succIn);
+			if (node.def != null)
+				Bits.clear(in, node.def.id);
+			Bits.or(in, node.use);
 			System.out.format("%-50s", ssa.toString());
-			System.out.format("%-40s", varSetToString(node.in));
+			System.out.format("%-40s", varSetToString(in));
 			System.out.format("%-40s\n", varSetToString(node.succIn));
 		}
 	}
 	
-	private String varSetToString(Set<Variable> varSet) {
+	private String varSetToString(long[] varSet) {
 		// sort varset
-		Variable[] vars = varSet.toArray(new Variable[0]);
+		int[] ids = Bits.members(varSet);
+		Variable[] vars = new Variable[ids.length];
+		for (int i=0; i<ids.length; i++)
+			vars[i] = idToVar[ids[i]];
 		Arrays.sort(vars);
 		StringBuilder sb = new StringBuilder();
 		boolean first = true;
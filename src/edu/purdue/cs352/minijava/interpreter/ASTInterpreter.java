@@ -9,43 +9,43 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
     Program prog;
     Stack<StackFrame> stack;
 
+    // the layout of each class
+    Map<String, ClassShape<MethodDecl>> shapes;
+
+    // the inline cache of each call
+    Map<CallExp, CallSite<MethodDecl>> sites;
+
+    // the slot of each field access whose class is known from the code,
+    // resolved the first time it runs (or NO_SLOT to look it up by name)
+    static final int NO_SLOT = -1;
+    Map<Exp, Integer> fieldSlots;
+
+    // run methods compiled to closure trees rather than walking the AST
+    boolean useClosures;
+    Map<MethodDecl, ClassShape<MethodDecl>> methodShapes;
+    Map<MethodDecl, ClosureMethod> closureMethods;
+
     private static class StackFrame {
         public IntObject thiz;
         public Map<String, Object> vars;
 
-        public StackFrame(IntObject thiz) {
+        // the class of the method running, which this is an instance of
+        public ClassShape<MethodDecl> shape;
+
+        public StackFrame(IntObject thiz, ClassShape<MethodDecl> shape) {
             this.thiz = thiz;
+            this.shape = shape;
             this.vars = new HashMap<String, Object>();
         }
     }
 
-    private static class IntObject {
-        public Map<String, Object> fields;
-        final public Map<String, MethodDecl> methods;
-
-        public IntObject(Program prog, ClassDecl cl) {
-            fields = new HashMap<String, Object>();
-            methods = new HashMap<String, MethodDecl>();
-            addMembers(prog, cl);
-        }
-
-        private void addMembers(Program prog, ClassDecl cl) {
-            String eggstends = cl.getExtends();
-            if (eggstends != null) {
-                // get the super-members first
-                for (ClassDecl scl : prog.getClasses()) {
-                    if (scl.getName().equals(eggstends)) {
-                        addMembers(prog, scl);
-                        break;
-                    }
-                }
-            }
+    static class IntObject {
+        public final ClassShape<MethodDecl> shape;
+        public final Object[] fields;
 
-            // now add the local members
-            for (VarDecl f : cl.getFields())
-                fields.put(f.getName(), null);
-            for (MethodDecl m : cl.getMethods())
-                methods.put(m.getName(), m);
+        public IntObject(ClassShape<MethodDecl> shape) {
+            this.shape = shape;
+            fields = new Object[shape.numFields];
         }
     }
 
@@ -55,15 +55,31 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
         Program prog;
         ASTInterpreter interp;
 
-        if (args.length != 1) {
-            System.out.println("Use: mjinterp-ast <input file>");
+        String fname = null;
+        boolean useClosures = false;
+        boolean stats = false;
+
+        for (String arg : args) {
+            if (arg.equals("-c")) {
+                useClosures = true;
+            } else if (arg.equals("-v")) {
+                stats = true;
+            } else if (arg.startsWith("-") || fname != null) {
+                System.out.println("Use: mjinterp-ast [-c] [-v] <input file>");
+                return;
+            } else {
+                fname = arg;
+            }
+        }
+        if (fname == null) {
+            System.out.println("Use: mjinterp-ast [-c] [-v] <input file>");
             return;
         }
 
         try {
-            parser = new ParserAST(new java.io.FileInputStream(args[0]));
+            parser = new ParserAST(new java.io.FileInputStream(fname));
         } catch (java.io.FileNotFoundException ex) {
-            System.out.println("File " + args[0] + " not found.");
+            System.out.println("File " + fname + " not found.");
             return;
         }
 
@@ -74,21 +90,89 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
             return;
         }
 
-        interp = new ASTInterpreter(prog);
-        prog.accept(interp);
+        interp = new ASTInterpreter(prog, useClosures);
+        interp.execute();
+
+        if (stats)
+            System.err.println(interp.getCallSiteStats());
     }
 
 
     public ASTInterpreter(Program prog) {
+        this(prog, false);
+    }
+
+    public ASTInterpreter(Program prog, boolean useClosures) {
         this.prog = prog;
+        this.useClosures = useClosures;
         stack = new Stack<StackFrame>();
+
+        shapes = new HashMap<String, ClassShape<MethodDecl>>();
+        methodShapes = new IdentityHashMap<MethodDecl, ClassShape<MethodDecl>>();
+        for (ClassDecl cl : prog.getClasses()) {
+            ClassShape<MethodDecl> shape = ClassShape.of(prog, cl);
+            shapes.put(cl.getName(), shape);
+            for (MethodDecl m : cl.getMethods())
+                methodShapes.put(m, shape);
+        }
+        sites = new IdentityHashMap<CallExp, CallSite<MethodDecl>>();
+        fieldSlots = new IdentityHashMap<Exp, Integer>();
+        closureMethods = new IdentityHashMap<MethodDecl, ClosureMethod>();
     }
 
-    // helper function to get classes
-    private ClassDecl classByName(String name) {
-        for (ClassDecl cl : prog.getClasses())
-            if (cl.getName().equals(name)) return cl;
-        throw new Error("Unknown class " + name);
+    // run the program
+    public void execute() {
+        if (useClosures) {
+            ClosureMethod main = new ClosureMethod(this, prog.getMain());
+            main.body.exec(new ClosureMethod.Frame(main, null));
+        } else {
+            prog.accept(this);
+        }
+    }
+
+    // a method compiled for the closure engine, compiled on its first call
+    ClosureMethod compiled(MethodDecl m) {
+        ClosureMethod cm = closureMethods.get(m);
+        if (cm == null) {
+            cm = new ClosureMethod(this, methodShapes.get(m), m);
+            closureMethods.put(m, cm);
+        }
+        return cm;
+    }
+
+    // how every inline cache has done
+    public CallSiteStats getCallSiteStats() {
+        CallSiteStats stats = new CallSiteStats();
+        for (CallSite<MethodDecl> site : sites.values())
+            stats.add(site);
+        for (ClosureMethod cm : closureMethods.values())
+            for (CallSite<ClosureMethod> site : cm.sites)
+                stats.add(site);
+        return stats;
+    }
+
+    // helper function to get class layouts
+    ClassShape<MethodDecl> shapeByName(String name) {
+        ClassShape<MethodDecl> shape = shapes.get(name);
+        if (shape == null)
+            throw new Error("Unknown class " + name);
+        return shape;
+    }
+
+    // the slot of this field in an object of the class of shape (or one of
+    // its subclasses), found once for the expression accessing it
+    private int fieldSlot(Exp access, ClassShape<MethodDecl> shape, String name) {
+        Integer slot = fieldSlots.get(access);
+        if (slot == null) {
+            slot = (shape != null && shape.hasField(name)) ? shape.fieldSlot(name) : NO_SLOT;
+            fieldSlots.put(access, slot);
+        }
+        return slot.intValue();
+    }
+
+    // a field of this, by the slot found for the expression if there is one
+    private static int fieldOfThis(StackFrame frame, int slot, String name) {
+        return slot != NO_SLOT ? slot : frame.thiz.shape.fieldSlot(name);
     }
 
     @Override public Object defaultVisit(ASTNode node) {
@@ -97,7 +181,7 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
 
     // the program itself just runs main
     @Override public Object visit(Program prog) {
-        stack.push(new StackFrame(null));
+        stack.push(new StackFrame(null, null));
         Object ret = prog.getMain().accept(this);
         stack.pop();
         return ret;
@@ -179,7 +263,8 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
             if (frame.vars.containsKey(name)) {
                 frame.vars.put(name, ret);
             } else {
-                frame.thiz.fields.put(name, ret);
+                int slot = fieldOfThis(frame, fieldSlot(exp, frame.shape, name), name);
+                frame.thiz.fields[slot] = ret;
             }
 
         } else if (lhs instanceof IndexExp) {
@@ -252,13 +337,23 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
             argvs.add(arg.accept(this));
         }
 
-        MethodDecl method = obj.methods.get(mname);
+        // find the method, through the inline cache
+        CallSite<MethodDecl> site = sites.get(exp);
+        if (site == null) {
+            site = new CallSite<MethodDecl>(mname);
+            sites.put(exp, site);
+        }
+        MethodDecl method = site.lookup(obj.shape);
+        if (method == null) {
+            method = obj.shape.lookup(mname);
+            site.add(obj.shape, method);
+        }
 
         // map all the arguments
         List<Parameter> parms = method.getParameters();
         if (argvs.size() != parms.size())
             throw new Error("Number of arguments does not match number of parameters!");
-        StackFrame frame = new StackFrame(obj);
+        StackFrame frame = new StackFrame(obj, methodShapes.get(method));
         Iterator<Object> argI = argvs.iterator();
         Iterator<Parameter> parmI = parms.iterator();
         while (argI.hasNext()) {
@@ -286,10 +381,20 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
     }
 
     @Override public Object visit(MemberExp exp) {
-        Object obj = exp.getSub().accept(this);
+        Exp sub = exp.getSub();
+        Object obj = sub.accept(this);
         String mem = exp.getMember();
         if (obj instanceof IntObject) {
-            return ((IntObject) obj).fields.get(mem);
+            IntObject iobj = (IntObject) obj;
+
+            // the class is known for this and new objects
+            ClassShape<MethodDecl> shape = null;
+            if (sub instanceof ThisExp)
+                shape = stack.peek().shape;
+            else if (sub instanceof NewObjectExp)
+                shape = shapes.get(((NewObjectExp) sub).getName());
+            int slot = fieldSlot(exp, shape, mem);
+            return iobj.fields[slot != NO_SLOT ? slot : iobj.shape.fieldSlot(mem)];
         } else if (mem.equals("length")) {
             return ((int[]) obj).length;
         } else {
@@ -298,8 +403,7 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
     }
 
     @Override public Object visit(NewObjectExp exp) {
-        ClassDecl cl = classByName(exp.getName());
-        return new IntObject(prog, cl);
+        return new IntObject(shapeByName(exp.getName()));
     }
 
     @Override public Object visit(NewIntArrayExp exp) {
@@ -325,7 +429,7 @@ public class ASTInterpreter extends ASTVisitor.SimpleASTVisitor {
         if (frame.vars.containsKey(name)) {
             return frame.vars.get(name);
         } else {
-            return frame.thiz.fields.get(name);
+            return frame.thiz.fields[fieldOfThis(frame, fieldSlot(exp, frame.shape, name), name)];
         }
     }
 }
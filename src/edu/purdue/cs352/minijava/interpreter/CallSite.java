@@ -0,0 +1,52 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+/* An inline cache for one call site: the receiver classes seen there, each
+ * with the code it dispatched to, so that a repeated dispatch is a shape
+ * comparison instead of a lookup by method name. A site caches up to
+ * MAX_SHAPES classes; once it sees more it is megamorphic, and stops
+ * caching. T is whatever the interpreter runs as a method. */
+final class CallSite<T> {
+    static final int MAX_SHAPES = 4;
+
+    final String method;
+
+    private final ClassShape<?>[] shapes;
+    private final Object[] targets;
+    private int size;
+    private boolean megamorphic;
+
+    long hits, misses;
+
+    CallSite(String method) {
+        this.method = method;
+        shapes = new ClassShape<?>[MAX_SHAPES];
+        targets = new Object[MAX_SHAPES];
+    }
+
+    // get the cached target for this receiver class, or null on a miss
+    @SuppressWarnings("unchecked")
+    T lookup(ClassShape<?> shape) {
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                hits++;
+                return (T) targets[i];
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    // remember the target found for this receiver class after a miss
+    void add(ClassShape<?> shape, T target) {
+        if (size < MAX_SHAPES) {
+            shapes[size] = shape;
+            targets[size] = target;
+            size++;
+        } else {
+            megamorphic = true;
+        }
+    }
+
+    int size() { return size; }
+    boolean isMegamorphic() { return megamorphic; }
+}
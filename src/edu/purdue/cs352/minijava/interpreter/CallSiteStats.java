@@ -0,0 +1,33 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+// a summary of how well a set of inline caches did
+final class CallSiteStats {
+    int sites, unused, monomorphic, polymorphic, megamorphic;
+    long hits, misses;
+
+    void add(CallSite<?> site) {
+        sites++;
+        hits += site.hits;
+        misses += site.misses;
+        if (site.isMegamorphic())
+            megamorphic++;
+        else if (site.size() > 1)
+            polymorphic++;
+        else if (site.size() == 1)
+            monomorphic++;
+        else
+            unused++;
+    }
+
+    double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override public String toString() {
+        return String.format("inline caches: %d sites (%d monomorphic, %d polymorphic, "
+            + "%d megamorphic, %d unused), %d hits, %d misses, %.2f%% hit rate",
+            sites, monomorphic, polymorphic, megamorphic, unused, hits, misses,
+            100.0 * hitRate());
+    }
+}
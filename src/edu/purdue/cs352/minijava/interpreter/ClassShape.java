@@ -0,0 +1,122 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ast.*;
+import edu.purdue.cs352.minijava.backend.ClassLayout;
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* The layout shared by every interpreted instance of a class: the slot of
+ * each field in an instance's field array, and the class's vtable. It is
+ * built once per class, so an instance is just a shape and an array.
+ *
+ * Like the compiled layout, superclass fields and methods come first, so a
+ * slot found in a superclass's shape is valid for all of its subclasses. M
+ * is whatever the interpreter runs as a method. */
+final class ClassShape<M> {
+    final String name;
+    final int numFields;
+
+    private final Map<String, Integer> fieldSlots;
+    private final Map<String, Integer> methodSlots;
+    private final Object[] vtable;
+
+    private ClassShape(String name, int numFields, Map<String, Integer> fieldSlots,
+            List<String> methodNames, List<M> methods) {
+        this.name = name;
+        this.numFields = numFields;
+        this.fieldSlots = fieldSlots;
+
+        methodSlots = new HashMap<String, Integer>();
+        for (int i = 0; i < methodNames.size(); i++)
+            methodSlots.put(methodNames.get(i), i);
+        vtable = methods.toArray();
+    }
+
+    // the shape of a compiled class, laid out as by the MIPS backend
+    static ClassShape<SSAMethod> of(SSAProgram prog, SSAClass cl) {
+        // fields of subclasses hide those of superclasses with the same name
+        Map<String, Integer> fieldSlots = new HashMap<String, Integer>();
+        for (SSAClass c = cl; c != null; c = c.superclass(prog)) {
+            for (SSAField f : c.getFieldsOrdered()) {
+                String fname = f.getName();
+                if (!fieldSlots.containsKey(fname)) {
+                    // the layout counts the vtable pointer as the first word
+                    fieldSlots.put(fname, ClassLayout.fieldOffset(prog, cl, fname) - 1);
+                }
+            }
+        }
+
+        ClassLayout.Vtable vt = ClassLayout.getVtable(prog, cl);
+        List<SSAMethod> methods = new ArrayList<SSAMethod>();
+        for (String mname : vt.methods)
+            methods.add(ClassLayout.getImplementor(prog, cl, mname).getMethod(mname));
+
+        return new ClassShape<SSAMethod>(cl.getASTNode().getName(),
+            ClassLayout.objectFields(prog, cl), fieldSlots, vt.methods, methods);
+    }
+
+    // the shape of a class straight from the AST, laid out the same way
+    static ClassShape<MethodDecl> of(Program prog, ClassDecl cl) {
+        // list the class and its superclasses, base class first
+        LinkedList<ClassDecl> chain = new LinkedList<ClassDecl>();
+        for (ClassDecl c = cl; c != null; c = superclass(prog, c))
+            chain.addFirst(c);
+
+        Map<String, Integer> fieldSlots = new HashMap<String, Integer>();
+        Map<String, MethodDecl> methods = new LinkedHashMap<String, MethodDecl>();
+        int numFields = 0;
+        for (ClassDecl c : chain) {
+            for (VarDecl f : c.getFields())
+                fieldSlots.put(f.getName(), numFields++);
+
+            // overriding keeps the overridden method's place in the vtable
+            for (MethodDecl m : c.getMethods())
+                methods.put(m.getName(), m);
+        }
+
+        return new ClassShape<MethodDecl>(cl.getName(), numFields, fieldSlots,
+            new ArrayList<String>(methods.keySet()), new ArrayList<MethodDecl>(methods.values()));
+    }
+
+    private static ClassDecl superclass(Program prog, ClassDecl cl) {
+        String sup = cl.getExtends();
+        if (sup == null) return null;
+        for (ClassDecl c : prog.getClasses())
+            if (c.getName().equals(sup)) return c;
+        return null;
+    }
+
+    // does this class have this field?
+    boolean hasField(String field) {
+        return fieldSlots.containsKey(field);
+    }
+
+    int fieldSlot(String field) {
+        Integer slot = fieldSlots.get(field);
+        if (slot == null)
+            throw new Error("Class " + name + " has no field " + field);
+        return slot.intValue();
+    }
+
+    // does this class have this method?
+    boolean hasMethod(String method) {
+        return methodSlots.containsKey(method);
+    }
+
+    int methodSlot(String method) {
+        Integer slot = methodSlots.get(method);
+        if (slot == null)
+            throw new Error("Class " + name + " has no method " + method);
+        return slot.intValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    M method(int slot) {
+        return (M) vtable[slot];
+    }
+
+    M lookup(String method) {
+        return method(methodSlot(method));
+    }
+}
@@ -0,0 +1,270 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ast.*;
+import edu.purdue.cs352.minijava.interpreter.ASTInterpreter.IntObject;
+
+/* A MethodDecl (or main) compiled for the closure engine of ASTInterpreter:
+ * its body and return expression as trees of ClosureNodes. Every local is
+ * resolved to a fixed index in its frame, with ints and booleans unboxed in
+ * one array and everything else in another, and every field of this to its
+ * slot in the class's shape. */
+final class ClosureMethod {
+    // the kinds of local: boxed values, or unboxed ints and booleans
+    static final byte REF = 0;
+    static final byte INT = 1;
+    static final byte BOOL = 2;
+
+    final MethodDecl method;
+    final ClosureNode body;
+    final ClosureNode ret;
+    final int numInts, numRefs;
+
+    // where each parameter goes in the frame: its kind, and its index in
+    // ints or refs
+    final byte[] paramKinds;
+    final int[] paramIndices;
+
+    // every call made by this method
+    final List<CallSite<ClosureMethod>> sites = new ArrayList<CallSite<ClosureMethod>>();
+
+    static final class Frame {
+        final ClosureMethod method;
+        final IntObject thiz;
+        final int[] ints;
+        final Object[] refs;
+
+        Frame(ClosureMethod method, IntObject thiz) {
+            this.method = method;
+            this.thiz = thiz;
+            ints = new int[method.numInts];
+            refs = new Object[method.numRefs];
+        }
+    }
+
+    private static final class Local {
+        final byte kind;
+        final int index;
+
+        Local(byte kind, int index) {
+            this.kind = kind;
+            this.index = index;
+        }
+    }
+
+    private final ASTInterpreter interp;
+    private final ClassShape<MethodDecl> thisShape;
+    private final Map<String, Local> locals = new HashMap<String, Local>();
+    private int ints, refs;
+
+    // compile a method of the class with this shape
+    ClosureMethod(ASTInterpreter interp, ClassShape<MethodDecl> thisShape, MethodDecl method) {
+        this.interp = interp;
+        this.thisShape = thisShape;
+        this.method = method;
+
+        List<Parameter> params = method.getParameters();
+        paramKinds = new byte[params.size()];
+        paramIndices = new int[params.size()];
+        for (int i = 0; i < params.size(); i++) {
+            Parameter p = params.get(i);
+            Local l = declare(p.getName(), p.getType());
+            paramKinds[i] = l.kind;
+            paramIndices[i] = l.index;
+        }
+        for (VarDecl v : method.getVarDecls())
+            declare(v.getName(), v.getType());
+
+        Compiler c = new Compiler();
+        body = c.block(method.getBody());
+        ret = c.compile(method.getRetExp());
+        numInts = ints;
+        numRefs = refs;
+    }
+
+    // compile main
+    ClosureMethod(ASTInterpreter interp, Main main) {
+        this.interp = interp;
+        this.thisShape = null;
+        this.method = null;
+        paramKinds = new byte[0];
+        paramIndices = new int[0];
+
+        body = new Compiler().compile(main.getBody());
+        ret = null;
+        numInts = numRefs = 0;
+    }
+
+    private Local declare(String name, Type type) {
+        Local l;
+        if (type instanceof TypeInt)
+            l = new Local(INT, ints++);
+        else if (type instanceof TypeBoolean)
+            l = new Local(BOOL, ints++);
+        else
+            l = new Local(REF, refs++);
+        locals.put(name, l);
+        return l;
+    }
+
+    // build the nodes for each kind of AST node
+    private class Compiler extends ASTVisitor.SimpleASTVisitor {
+        ClosureNode compile(ASTNode node) {
+            return (ClosureNode) node.accept(this);
+        }
+
+        ClosureNode block(List<Statement> stmts) {
+            ClosureNode[] body = new ClosureNode[stmts.size()];
+            for (int i = 0; i < body.length; i++)
+                body[i] = compile(stmts.get(i));
+            return new ClosureNode.Block(body);
+        }
+
+        @Override public Object defaultVisit(ASTNode node) {
+            throw new Error("Implement closure compiler for " + node.getClass().getSimpleName());
+        }
+
+        // Statements:
+        @Override public Object visit(BlockStatement stmt) {
+            return block(stmt.getBody());
+        }
+
+        @Override public Object visit(ExpStatement stmt) {
+            return compile(stmt.getExp());
+        }
+
+        @Override public Object visit(IfStatement ifs) {
+            Statement elsePart = ifs.getElsePart();
+            return new ClosureNode.If(compile(ifs.getCondition()), compile(ifs.getIfPart()),
+                elsePart == null ? null : compile(elsePart));
+        }
+
+        @Override public Object visit(PrintStatement stmt) {
+            return new ClosureNode.Print(compile(stmt.getValue()));
+        }
+
+        @Override public Object visit(WhileStatement ws) {
+            return new ClosureNode.While(compile(ws.getCondition()), compile(ws.getBody()));
+        }
+
+        // Expressions:
+        @Override public Object visit(AssignExp exp) {
+            Exp lhs = exp.getTarget();
+            ClosureNode value;
+
+            if (lhs instanceof VarExp) {
+                String name = ((VarExp) lhs).getName();
+                Local l = locals.get(name);
+                if (l == null) {
+                    int slot = fieldSlot(name);
+                    return new ClosureNode.AssignField(slot, compile(exp.getValue()));
+                }
+                value = compile(exp.getValue());
+                if (l.kind == INT)
+                    return new ClosureNode.AssignIntLocal(l.index, value);
+                if (l.kind == BOOL)
+                    return new ClosureNode.AssignBoolLocal(l.index, value);
+                return new ClosureNode.AssignRefLocal(l.index, value);
+
+            } else if (lhs instanceof MemberExp) {
+                MemberExp ml = (MemberExp) lhs;
+                ClosureNode sub = compile(ml.getSub());
+                return new ClosureNode.AssignMember(sub, ml.getMember(), compile(exp.getValue()));
+
+            } else if (lhs instanceof IndexExp) {
+                IndexExp il = (IndexExp) lhs;
+                ClosureNode target = compile(il.getTarget());
+                ClosureNode index = compile(il.getIndex());
+                return new ClosureNode.AssignIndex(target, index, compile(exp.getValue()));
+
+            } else {
+                throw new Error("Implement = for " + lhs.getClass().getSimpleName());
+            }
+        }
+
+        @Override public Object visit(BinaryExp exp) {
+            String op = exp.getOp().toString();
+            ClosureNode l = compile(exp.getLeft());
+            ClosureNode r = compile(exp.getRight());
+
+            if (op.equals("<")) return new ClosureNode.Lt(l, r);
+            if (op.equals("<=")) return new ClosureNode.Le(l, r);
+            if (op.equals(">")) return new ClosureNode.Gt(l, r);
+            if (op.equals(">=")) return new ClosureNode.Ge(l, r);
+            if (op.equals("==")) return new ClosureNode.Eq(l, r, false);
+            if (op.equals("!=")) return new ClosureNode.Eq(l, r, true);
+            if (op.equals("+")) return new ClosureNode.Plus(l, r);
+            if (op.equals("-")) return new ClosureNode.Minus(l, r);
+            if (op.equals("*")) return new ClosureNode.Mul(l, r);
+            if (op.equals("/")) return new ClosureNode.Div(l, r);
+            if (op.equals("%")) return new ClosureNode.Mod(l, r);
+            if (op.equals("&&")) return new ClosureNode.And(l, r);
+            if (op.equals("||")) return new ClosureNode.Or(l, r);
+            throw new Error("Implement BinaryExp for " + op);
+        }
+
+        @Override public Object visit(BooleanLiteralExp exp) {
+            return new ClosureNode.BoolConst(exp.getValue());
+        }
+
+        @Override public Object visit(CallExp exp) {
+            ClosureNode target = compile(exp.getTarget());
+            List<Exp> argExps = exp.getArguments();
+            ClosureNode[] args = new ClosureNode[argExps.size()];
+            for (int i = 0; i < args.length; i++)
+                args[i] = compile(argExps.get(i));
+
+            ClosureNode.Call call = new ClosureNode.Call(interp, target, exp.getMethod(), args);
+            sites.add(call.site);
+            return call;
+        }
+
+        @Override public Object visit(IndexExp exp) {
+            return new ClosureNode.Index(compile(exp.getTarget()), compile(exp.getIndex()));
+        }
+
+        @Override public Object visit(IntLiteralExp exp) {
+            return new ClosureNode.IntConst(exp.getValue());
+        }
+
+        @Override public Object visit(MemberExp exp) {
+            return new ClosureNode.Member(compile(exp.getSub()), exp.getMember());
+        }
+
+        @Override public Object visit(NewObjectExp exp) {
+            return new ClosureNode.NewObj(interp.shapeByName(exp.getName()));
+        }
+
+        @Override public Object visit(NewIntArrayExp exp) {
+            return new ClosureNode.NewIntArray(compile(exp.getSize()));
+        }
+
+        @Override public Object visit(NotExp exp) {
+            return new ClosureNode.Not(compile(exp.getSub()));
+        }
+
+        @Override public Object visit(ThisExp exp) {
+            return new ClosureNode.This();
+        }
+
+        @Override public Object visit(VarExp exp) {
+            String name = exp.getName();
+            Local l = locals.get(name);
+            if (l == null)
+                return new ClosureNode.Field(fieldSlot(name));
+            if (l.kind == INT)
+                return new ClosureNode.IntLocal(l.index);
+            if (l.kind == BOOL)
+                return new ClosureNode.BoolLocal(l.index);
+            return new ClosureNode.RefLocal(l.index);
+        }
+
+        // anything which is not a local is a field of this
+        private int fieldSlot(String name) {
+            if (thisShape == null)
+                throw new Error("Unknown variable " + name);
+            return thisShape.fieldSlot(name);
+        }
+    }
+}
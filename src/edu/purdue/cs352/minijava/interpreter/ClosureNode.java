@@ -0,0 +1,491 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import edu.purdue.cs352.minijava.ast.MethodDecl;
+import edu.purdue.cs352.minijava.interpreter.ASTInterpreter.IntObject;
+import edu.purdue.cs352.minijava.interpreter.ClosureMethod.Frame;
+
+/* A node of a method compiled for the closure engine of ASTInterpreter.
+ * Running a node is one virtual call, with its children and the locals it
+ * uses resolved when it was built. Nodes producing ints and booleans do so
+ * unboxed through evalInt and evalBoolean, and only box when something
+ * asks for a plain value. Statements are nodes run for their effects. */
+abstract class ClosureNode {
+    abstract Object eval(Frame f);
+
+    int evalInt(Frame f) {
+        return intValue(eval(f));
+    }
+
+    boolean evalBoolean(Frame f) {
+        return booleanValue(eval(f));
+    }
+
+    // fields start out null, which is 0 or false until they are assigned
+    static int intValue(Object v) {
+        return v == null ? 0 : ((Integer) v).intValue();
+    }
+
+    static boolean booleanValue(Object v) {
+        return v != null && ((Boolean) v).booleanValue();
+    }
+
+    // run for effect only
+    void exec(Frame f) {
+        eval(f);
+    }
+
+    // nodes producing ints
+    static abstract class IntNode extends ClosureNode {
+        @Override abstract int evalInt(Frame f);
+
+        @Override Object eval(Frame f) {
+            return Integer.valueOf(evalInt(f));
+        }
+
+        @Override void exec(Frame f) {
+            evalInt(f);
+        }
+    }
+
+    // nodes producing booleans
+    static abstract class BoolNode extends ClosureNode {
+        @Override abstract boolean evalBoolean(Frame f);
+
+        @Override Object eval(Frame f) {
+            return Boolean.valueOf(evalBoolean(f));
+        }
+
+        @Override void exec(Frame f) {
+            evalBoolean(f);
+        }
+    }
+
+    // nodes with no value
+    static abstract class StmtNode extends ClosureNode {
+        @Override abstract void exec(Frame f);
+
+        @Override Object eval(Frame f) {
+            exec(f);
+            return null;
+        }
+    }
+
+    // Constants:
+    static final class IntConst extends IntNode {
+        private final int value;
+        IntConst(int value) { this.value = value; }
+        @Override int evalInt(Frame f) { return value; }
+    }
+
+    static final class BoolConst extends BoolNode {
+        private final boolean value;
+        BoolConst(boolean value) { this.value = value; }
+        @Override boolean evalBoolean(Frame f) { return value; }
+    }
+
+    // Locals, fields and this:
+    static final class IntLocal extends IntNode {
+        private final int index;
+        IntLocal(int index) { this.index = index; }
+        @Override int evalInt(Frame f) { return f.ints[index]; }
+    }
+
+    static final class BoolLocal extends BoolNode {
+        private final int index;
+        BoolLocal(int index) { this.index = index; }
+        @Override boolean evalBoolean(Frame f) { return f.ints[index] != 0; }
+    }
+
+    static final class RefLocal extends ClosureNode {
+        private final int index;
+        RefLocal(int index) { this.index = index; }
+        @Override Object eval(Frame f) { return f.refs[index]; }
+    }
+
+    // a field of this, at a slot known from the class of the method
+    static final class Field extends ClosureNode {
+        private final int slot;
+        Field(int slot) { this.slot = slot; }
+        @Override Object eval(Frame f) { return f.thiz.fields[slot]; }
+    }
+
+    static final class This extends ClosureNode {
+        @Override Object eval(Frame f) { return f.thiz; }
+    }
+
+    // a member of some other object, found in its shape when it is run
+    static final class Member extends ClosureNode {
+        private final ClosureNode sub;
+        private final String member;
+
+        Member(ClosureNode sub, String member) {
+            this.sub = sub;
+            this.member = member;
+        }
+
+        @Override Object eval(Frame f) {
+            Object obj = sub.eval(f);
+            if (obj instanceof IntObject) {
+                IntObject iobj = (IntObject) obj;
+                return iobj.fields[iobj.shape.fieldSlot(member)];
+            }
+            return Integer.valueOf(length(obj));
+        }
+
+        @Override int evalInt(Frame f) {
+            Object obj = sub.eval(f);
+            if (obj instanceof int[] && member.equals("length"))
+                return ((int[]) obj).length;
+            if (obj instanceof IntObject) {
+                IntObject iobj = (IntObject) obj;
+                return intValue(iobj.fields[iobj.shape.fieldSlot(member)]);
+            }
+            return length(obj);
+        }
+
+        private int length(Object obj) {
+            if (member.equals("length"))
+                return ((int[]) obj).length;
+            throw new Error("Invalid member access");
+        }
+    }
+
+    static final class Index extends IntNode {
+        private final ClosureNode target, index;
+
+        Index(ClosureNode target, ClosureNode index) {
+            this.target = target;
+            this.index = index;
+        }
+
+        @Override int evalInt(Frame f) {
+            int[] arr = (int[]) target.eval(f);
+            return arr[index.evalInt(f)];
+        }
+    }
+
+    // Allocation:
+    static final class NewObj extends ClosureNode {
+        private final ClassShape<MethodDecl> shape;
+        NewObj(ClassShape<MethodDecl> shape) { this.shape = shape; }
+        @Override Object eval(Frame f) { return new IntObject(shape); }
+    }
+
+    static final class NewIntArray extends ClosureNode {
+        private final ClosureNode size;
+        NewIntArray(ClosureNode size) { this.size = size; }
+        @Override Object eval(Frame f) { return new int[size.evalInt(f)]; }
+    }
+
+    // Assignment, which has the assigned value:
+    static final class AssignIntLocal extends IntNode {
+        private final int index;
+        private final ClosureNode value;
+
+        AssignIntLocal(int index, ClosureNode value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override int evalInt(Frame f) {
+            return f.ints[index] = value.evalInt(f);
+        }
+    }
+
+    static final class AssignBoolLocal extends BoolNode {
+        private final int index;
+        private final ClosureNode value;
+
+        AssignBoolLocal(int index, ClosureNode value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override boolean evalBoolean(Frame f) {
+            boolean v = value.evalBoolean(f);
+            f.ints[index] = v ? 1 : 0;
+            return v;
+        }
+    }
+
+    static final class AssignRefLocal extends ClosureNode {
+        private final int index;
+        private final ClosureNode value;
+
+        AssignRefLocal(int index, ClosureNode value) {
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override Object eval(Frame f) {
+            return f.refs[index] = value.eval(f);
+        }
+    }
+
+    static final class AssignField extends ClosureNode {
+        private final int slot;
+        private final ClosureNode value;
+
+        AssignField(int slot, ClosureNode value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override Object eval(Frame f) {
+            return f.thiz.fields[slot] = value.eval(f);
+        }
+    }
+
+    static final class AssignMember extends ClosureNode {
+        private final ClosureNode sub, value;
+        private final String member;
+
+        AssignMember(ClosureNode sub, String member, ClosureNode value) {
+            this.sub = sub;
+            this.member = member;
+            this.value = value;
+        }
+
+        @Override Object eval(Frame f) {
+            IntObject obj = (IntObject) sub.eval(f);
+            return obj.fields[obj.shape.fieldSlot(member)] = value.eval(f);
+        }
+    }
+
+    static final class AssignIndex extends IntNode {
+        private final ClosureNode target, index, value;
+
+        AssignIndex(ClosureNode target, ClosureNode index, ClosureNode value) {
+            this.target = target;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override int evalInt(Frame f) {
+            int[] arr = (int[]) target.eval(f);
+            int idx = index.evalInt(f);
+            return arr[idx] = value.evalInt(f);
+        }
+    }
+
+    // Operators:
+    static abstract class IntBinary extends IntNode {
+        final ClosureNode left, right;
+
+        IntBinary(ClosureNode left, ClosureNode right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    static abstract class BoolBinary extends BoolNode {
+        final ClosureNode left, right;
+
+        BoolBinary(ClosureNode left, ClosureNode right) {
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    static final class Plus extends IntBinary {
+        Plus(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override int evalInt(Frame f) { return left.evalInt(f) + right.evalInt(f); }
+    }
+
+    static final class Minus extends IntBinary {
+        Minus(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override int evalInt(Frame f) { return left.evalInt(f) - right.evalInt(f); }
+    }
+
+    static final class Mul extends IntBinary {
+        Mul(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override int evalInt(Frame f) { return left.evalInt(f) * right.evalInt(f); }
+    }
+
+    static final class Div extends IntBinary {
+        Div(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override int evalInt(Frame f) { return left.evalInt(f) / right.evalInt(f); }
+    }
+
+    static final class Mod extends IntBinary {
+        Mod(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override int evalInt(Frame f) { return left.evalInt(f) % right.evalInt(f); }
+    }
+
+    static final class Lt extends BoolBinary {
+        Lt(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override boolean evalBoolean(Frame f) { return left.evalInt(f) < right.evalInt(f); }
+    }
+
+    static final class Le extends BoolBinary {
+        Le(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override boolean evalBoolean(Frame f) { return left.evalInt(f) <= right.evalInt(f); }
+    }
+
+    static final class Gt extends BoolBinary {
+        Gt(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override boolean evalBoolean(Frame f) { return left.evalInt(f) > right.evalInt(f); }
+    }
+
+    static final class Ge extends BoolBinary {
+        Ge(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override boolean evalBoolean(Frame f) { return left.evalInt(f) >= right.evalInt(f); }
+    }
+
+    // like the compiled code, && and || evaluate both sides
+    static final class And extends BoolBinary {
+        And(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override boolean evalBoolean(Frame f) { return left.evalBoolean(f) & right.evalBoolean(f); }
+    }
+
+    static final class Or extends BoolBinary {
+        Or(ClosureNode l, ClosureNode r) { super(l, r); }
+        @Override boolean evalBoolean(Frame f) { return left.evalBoolean(f) | right.evalBoolean(f); }
+    }
+
+    static final class Eq extends BoolBinary {
+        private final boolean negate;
+
+        Eq(ClosureNode l, ClosureNode r, boolean negate) {
+            super(l, r);
+            this.negate = negate;
+        }
+
+        @Override boolean evalBoolean(Frame f) {
+            boolean eq;
+            if (left instanceof IntNode && right instanceof IntNode) {
+                eq = left.evalInt(f) == right.evalInt(f);
+            } else if (left instanceof BoolNode && right instanceof BoolNode) {
+                eq = left.evalBoolean(f) == right.evalBoolean(f);
+            } else {
+                // ints are equal by value, everything else by identity
+                Object lo = left.eval(f);
+                Object ro = right.eval(f);
+                if (lo instanceof Integer)
+                    eq = lo.equals(ro);
+                else if (ro instanceof Integer)
+                    eq = false;
+                else
+                    eq = lo == ro;
+            }
+            return eq != negate;
+        }
+    }
+
+    static final class Not extends BoolNode {
+        private final ClosureNode sub;
+        Not(ClosureNode sub) { this.sub = sub; }
+        @Override boolean evalBoolean(Frame f) { return !sub.evalBoolean(f); }
+    }
+
+    // Calls:
+    static final class Call extends ClosureNode {
+        private final ASTInterpreter interp;
+        private final ClosureNode target;
+        private final ClosureNode[] args;
+        final CallSite<ClosureMethod> site;
+
+        Call(ASTInterpreter interp, ClosureNode target, String method, ClosureNode[] args) {
+            this.interp = interp;
+            this.target = target;
+            this.args = args;
+            site = new CallSite<ClosureMethod>(method);
+        }
+
+        // run the method, leaving only its return value to evaluate
+        private Frame invoke(Frame f) {
+            IntObject obj = (IntObject) target.eval(f);
+
+            // find the method, through the inline cache
+            ClosureMethod cm = site.lookup(obj.shape);
+            if (cm == null) {
+                cm = interp.compiled(obj.shape.lookup(site.method));
+                if (args.length != cm.paramKinds.length)
+                    throw new Error("Number of arguments does not match number of parameters!");
+                site.add(obj.shape, cm);
+            }
+
+            // arguments go straight into the callee's frame
+            Frame cf = new Frame(cm, obj);
+            for (int i = 0; i < args.length; i++) {
+                int idx = cm.paramIndices[i];
+                switch (cm.paramKinds[i]) {
+                    case ClosureMethod.INT: cf.ints[idx] = args[i].evalInt(f); break;
+                    case ClosureMethod.BOOL: cf.ints[idx] = args[i].evalBoolean(f) ? 1 : 0; break;
+                    default: cf.refs[idx] = args[i].eval(f);
+                }
+            }
+
+            cm.body.exec(cf);
+            return cf;
+        }
+
+        @Override Object eval(Frame f) {
+            Frame cf = invoke(f);
+            return cf.method.ret.eval(cf);
+        }
+
+        @Override int evalInt(Frame f) {
+            Frame cf = invoke(f);
+            return cf.method.ret.evalInt(cf);
+        }
+
+        @Override boolean evalBoolean(Frame f) {
+            Frame cf = invoke(f);
+            return cf.method.ret.evalBoolean(cf);
+        }
+    }
+
+    // Statements:
+    static final class Block extends StmtNode {
+        private final ClosureNode[] body;
+        Block(ClosureNode[] body) { this.body = body; }
+
+        @Override void exec(Frame f) {
+            for (ClosureNode s : body) s.exec(f);
+        }
+    }
+
+    static final class If extends StmtNode {
+        private final ClosureNode cond, ifPart, elsePart;
+
+        If(ClosureNode cond, ClosureNode ifPart, ClosureNode elsePart) {
+            this.cond = cond;
+            this.ifPart = ifPart;
+            this.elsePart = elsePart;
+        }
+
+        @Override void exec(Frame f) {
+            if (cond.evalBoolean(f))
+                ifPart.exec(f);
+            else if (elsePart != null)
+                elsePart.exec(f);
+        }
+    }
+
+    static final class While extends StmtNode {
+        private final ClosureNode cond, body;
+
+        While(ClosureNode cond, ClosureNode body) {
+            this.cond = cond;
+            this.body = body;
+        }
+
+        @Override void exec(Frame f) {
+            while (cond.evalBoolean(f))
+                body.exec(f);
+        }
+    }
+
+    static final class Print extends StmtNode {
+        private final ClosureNode value;
+        Print(ClosureNode value) { this.value = value; }
+
+        @Override void exec(Frame f) {
+            if (value instanceof IntNode)
+                System.out.println(value.evalInt(f));
+            else
+                System.out.println(value.eval(f));
+        }
+    }
+}
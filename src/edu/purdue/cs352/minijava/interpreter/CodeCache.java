@@ -0,0 +1,36 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* A cache of some prepared form of methods, keyed by method identity, so
+ * that each method is prepared once no matter how often it is called.
+ * Counts how often it is hit and how often it has to prepare a method. */
+abstract class CodeCache<T> {
+    private final Map<SSAMethod, T> prepared = new IdentityHashMap<SSAMethod, T>();
+    private long hits, preparations;
+
+    // prepare a method that is not in the cache yet
+    protected abstract T prepare(SSAMethod m);
+
+    public T get(SSAMethod m) {
+        T code = prepared.get(m);
+        if (code == null) {
+            code = prepare(m);
+            prepared.put(m, code);
+            preparations++;
+        } else {
+            hits++;
+        }
+        return code;
+    }
+
+    // everything prepared so far
+    public Collection<T> prepared() {
+        return prepared.values();
+    }
+
+    public long getHits() { return hits; }
+    public long getPreparations() { return preparations; }
+}
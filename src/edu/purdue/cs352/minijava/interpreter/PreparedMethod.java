@@ -0,0 +1,129 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* Everything SSAInterpreter needs to know about a method body before it can
+ * run it, worked out once: the statements as an array, where every jump
+ * goes, which statements are unified with which, the arguments of every
+ * call, and the slots of the fields it can resolve. Indexed by position in
+ * the body. */
+final class PreparedMethod {
+    final SSAMethod method;
+    final SSAStatement[] body;
+
+    // body index of the label each Goto, Branch and NBranch jumps to
+    final int[] targets;
+
+    // for each statement, every statement unified with it (or null)
+    final SSAStatement[][] unified;
+
+    // the arguments and inline cache of each call
+    final SSAStatement[][] args;
+    final CallSite<?>[] sites;
+
+    // the field slot of each Member and MemberAssg whose target's class is
+    // known here (or SlotMethod.NONE if it has to be looked up by name)
+    final int[] fieldSlots;
+
+    // the profile used by tiered execution: how often the method has been
+    // entered and has jumped backwards, and its slot form once it is hot
+    int invocations;
+    int backEdges;
+    SlotMethod promoted;
+
+    PreparedMethod(SSAMethod method, Map<String, ClassShape<SSAMethod>> shapes,
+            ClassShape<SSAMethod> thisShape) {
+        this.method = method;
+        body = method.getBody().toArray(new SSAStatement[0]);
+        targets = new int[body.length];
+        unified = new SSAStatement[body.length][];
+        args = new SSAStatement[body.length][];
+        sites = new CallSite<?>[body.length];
+        fieldSlots = new int[body.length];
+        Arrays.fill(fieldSlots, SlotMethod.NONE);
+
+        ControlFlowGraph cfg = method.getCFG();
+        Map<SSAStatement, List<SSAStatement>> unifications = new HashMap<SSAStatement, List<SSAStatement>>();
+
+        // map all the unifications
+        for (int bi = 0; bi < body.length; bi++) {
+            SSAStatement s = body[bi];
+            switch (s.getOp()) {
+                case Unify:
+                case Alias:
+                {
+                    // get the full list
+                    SSAStatement left = s.getLeft();
+                    SSAStatement right = s.getRight();
+                    List<SSAStatement> ulist, rlist;
+
+                    if (unifications.containsKey(left)) {
+                        ulist = new ArrayList<SSAStatement>(unifications.get(left));
+                    } else {
+                        ulist = new ArrayList<SSAStatement>();
+                        ulist.add(left);
+                    }
+
+                    if (right != null) {
+                        if (unifications.containsKey(right)) {
+                            rlist = unifications.get(right);
+                        } else {
+                            rlist = new ArrayList<SSAStatement>();
+                            rlist.add(right);
+                        }
+                        ulist.addAll(rlist);
+                    }
+
+                    ulist.add(s);
+
+                    for (SSAStatement s2 : ulist) {
+                        unifications.put(s2, ulist);
+                    }
+                    break;
+                }
+
+                case Call:
+                {
+                    SSACall call = (SSACall) s.getSpecial();
+                    args[bi] = call.getArgs().toArray(new SSAStatement[0]);
+                    sites[bi] = new CallSite<PreparedMethod>(call.getMethod());
+                    break;
+                }
+
+                case Member:
+                case MemberAssg:
+                {
+                    ClassShape<SSAMethod> shape = SlotMethod.staticShape(s.getLeft(), shapes, thisShape);
+                    String field = (String) s.getSpecial();
+                    if (shape != null && shape.hasField(field))
+                        fieldSlots[bi] = shape.fieldSlot(field);
+                    break;
+                }
+
+                default:
+                    break;
+            }
+        }
+
+        // then resolve the jumps and unifications of each statement
+        for (int bi = 0; bi < body.length; bi++) {
+            SSAStatement s = body[bi];
+            switch (s.getOp()) {
+                case Goto:
+                case Branch:
+                case NBranch:
+                    targets[bi] = cfg.jumpTarget(bi);
+                    break;
+
+                default:
+                    break;
+            }
+
+            List<SSAStatement> ulist = unifications.get(s);
+            if (ulist != null)
+                unified[bi] = ulist.toArray(new SSAStatement[0]);
+        }
+    }
+}
@@ -6,10 +6,37 @@ import edu.purdue.cs352.minijava.ast.*;
 import edu.purdue.cs352.minijava.parser.*;
 import edu.purdue.cs352.minijava.ssa.*;
 import edu.purdue.cs352.minijava.SSACompiler;
+import edu.purdue.cs352.minijava.TypeChecker;
 
 public class SSAInterpreter {
     SSAProgram prog;
 
+    // run methods with the slot engine rather than over the SSA directly
+    boolean useSlots;
+
+    // start every method in the prepared engine, and move hot ones to the
+    // slot engine once they pass these thresholds
+    public static final int DEFAULT_INVOCATION_THRESHOLD = 500;
+    public static final int DEFAULT_BACK_EDGE_THRESHOLD = 5000;
+    boolean tiered;
+    TierStats tierStats;
+
+    // the layout of each class, and of the class defining each method
+    Map<String, ClassShape<SSAMethod>> shapes;
+    Map<SSAMethod, ClassShape<SSAMethod>> methodShapes;
+
+    // methods prepared for each engine
+    final CodeCache<PreparedMethod> preparedMethods = new CodeCache<PreparedMethod>() {
+        @Override protected PreparedMethod prepare(SSAMethod m) {
+            return new PreparedMethod(m, shapes, methodShapes.get(m));
+        }
+    };
+    final CodeCache<SlotMethod> slotMethods = new CodeCache<SlotMethod>() {
+        @Override protected SlotMethod prepare(SSAMethod m) {
+            return new SlotMethod(m, shapes, methodShapes.get(m));
+        }
+    };
+
     private static class StackFrame {
         public final IntObject thiz;
         public final Object[] params;
@@ -21,47 +48,133 @@ public class SSAInterpreter {
     }
 
     private static class IntObject {
-        public Map<String, Object> fields;
-        final public Map<String, SSAMethod> methods;
+        public final ClassShape<SSAMethod> shape;
+        public final Object[] fields;
+
+        public IntObject(ClassShape<SSAMethod> shape) {
+            this.shape = shape;
+            fields = new Object[shape.numFields];
+        }
+    }
+
+    // the register file of a frame in the slot engine
+    private static class RegisterFile {
+        public final byte[] kinds;
+        public final long[] prims;
+        public final Object[] refs;
+
+        public RegisterFile(SlotMethod sm) {
+            kinds = sm.kinds;
+            prims = new long[sm.numSlots];
+            refs = new Object[sm.numSlots];
+        }
+
+        public int getInt(int slot) {
+            if (kinds[slot] == SlotMethod.REF)
+                return ((Integer) refs[slot]).intValue();
+            return (int) prims[slot];
+        }
 
-        public IntObject(SSAProgram prog, SSAClass cl) {
-            fields = new HashMap<String, Object>();
-            methods = new HashMap<String, SSAMethod>();
-            addMembers(prog, cl);
+        public boolean getBoolean(int slot) {
+            if (kinds[slot] == SlotMethod.REF)
+                return ((Boolean) refs[slot]).booleanValue();
+            return prims[slot] != 0;
         }
 
-        private void addMembers(SSAProgram prog, SSAClass cl) {
-            String eggstends = cl.getASTNode().getExtends();
-            if (eggstends != null) {
-                // get the super-members first
-                SSAClass scl = prog.getClass(eggstends);
-                if (scl != null)
-                    addMembers(prog, scl);
+        public Object get(int slot) {
+            switch (kinds[slot]) {
+                case SlotMethod.INT: return Integer.valueOf((int) prims[slot]);
+                case SlotMethod.BOOL: return Boolean.valueOf(prims[slot] != 0);
+                default: return refs[slot];
             }
+        }
 
-            // now add the local members
-            for (SSAField f : cl.getFieldsOrdered())
-                fields.put(f.getName(), null);
-            for (SSAMethod m : cl.getMethodsOrdered())
-                methods.put(m.getMethod().getName(), m);
+        public void putInt(int slot, int value) {
+            if (kinds[slot] == SlotMethod.REF)
+                refs[slot] = Integer.valueOf(value);
+            else
+                prims[slot] = value;
         }
+
+        public void putBoolean(int slot, boolean value) {
+            if (kinds[slot] == SlotMethod.REF)
+                refs[slot] = Boolean.valueOf(value);
+            else
+                prims[slot] = value ? 1 : 0;
+        }
+
+        // fields start out null, which is 0 or false until they are assigned
+        public void put(int slot, Object value) {
+            switch (kinds[slot]) {
+                case SlotMethod.INT: prims[slot] = value == null ? 0 : ((Integer) value).intValue(); break;
+                case SlotMethod.BOOL: prims[slot] = value != null && ((Boolean) value).booleanValue() ? 1 : 0; break;
+                default: refs[slot] = value;
+            }
+        }
+
+        public void copy(int from, int to) {
+            copyFrom(this, from, to);
+        }
+
+        // copy a value from another frame's registers, unboxed if possible
+        public void copyFrom(RegisterFile src, int from, int to) {
+            if (src.kinds[from] == kinds[to]) {
+                prims[to] = src.prims[from];
+                refs[to] = src.refs[from];
+            } else {
+                put(to, src.get(from));
+            }
+        }
+    }
+
+    public static void usage() {
+        System.out.println("Use: mjinterp-ssa [-s | -j] [-t] [-v] <input file>");
     }
 
     public static void main(String[] args) {
+        String fname = null;
         ParserAST parser;
         Program progAST;
         SSAProgram prog;
         SSAInterpreter interp;
+        boolean useSlots = false;
+        boolean tiered = false;
+        boolean typeCheck = false;
+        boolean stats = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("-")) {
+                if (arg.equals("-s")) {
+                    useSlots = true;
+                } else if (arg.equals("-j")) {
+                    tiered = true;
+                } else if (arg.equals("-t")) {
+                    typeCheck = true;
+                } else if (arg.equals("-v")) {
+                    stats = true;
+                } else {
+                    usage();
+                    return;
+                }
+
+            } else if (fname == null) {
+                fname = arg;
+
+            } else {
+                usage();
+                return;
 
-        if (args.length != 1) {
-            System.out.println("Use: mjinterp-ast <input file>");
+            }
+        }
+        if (fname == null) {
+            usage();
             return;
         }
 
         try {
-            parser = new ParserAST(new java.io.FileInputStream(args[0]));
+            parser = new ParserAST(new java.io.FileInputStream(fname));
         } catch (java.io.FileNotFoundException ex) {
-            System.out.println("File " + args[0] + " not found.");
+            System.out.println("File " + fname + " not found.");
             return;
         }
 
@@ -73,13 +186,54 @@ public class SSAInterpreter {
         }
 
         prog = SSACompiler.compile(progAST);
-        interp = new SSAInterpreter(prog);
+
+        // with types, the slot engine keeps every int and boolean unboxed
+        if (typeCheck)
+            new TypeChecker(prog).typeCheck();
+
+        interp = new SSAInterpreter(prog, useSlots);
+        if (tiered)
+            interp.setTiered(DEFAULT_INVOCATION_THRESHOLD, DEFAULT_BACK_EDGE_THRESHOLD);
         interp.execute();
+
+        if (stats)
+            interp.printStats(System.err);
     }
 
 
     public SSAInterpreter(SSAProgram prog) {
+        this(prog, false);
+    }
+
+    public SSAInterpreter(SSAProgram prog, boolean useSlots) {
         this.prog = prog;
+        this.useSlots = useSlots;
+
+        // lay out every class up front
+        shapes = new HashMap<String, ClassShape<SSAMethod>>();
+        methodShapes = new IdentityHashMap<SSAMethod, ClassShape<SSAMethod>>();
+        for (SSAClass cl : prog.getClassesOrdered()) {
+            ClassShape<SSAMethod> shape = ClassShape.of(prog, cl);
+            shapes.put(shape.name, shape);
+            for (SSAMethod m : cl.getMethodsOrdered())
+                methodShapes.put(m, shape);
+        }
+    }
+
+    /* Run tiered: methods start in the prepared engine, which profiles them,
+     * and are promoted to the slot engine after enough invocations or
+     * backward jumps. A method promoted by its backward jumps continues its
+     * current invocation in the slot engine. */
+    public void setTiered(int invocationThreshold, int backEdgeThreshold) {
+        tiered = true;
+        tierStats = new TierStats(invocationThreshold, backEdgeThreshold);
+    }
+
+    private ClassShape<SSAMethod> shape(String className) {
+        ClassShape<SSAMethod> shape = shapes.get(className);
+        if (shape == null)
+            throw new Error("Unknown class " + className);
+        return shape;
     }
 
 
@@ -88,54 +242,99 @@ public class SSAInterpreter {
         execute(prog.getMain(), new StackFrame(null, 0));
     }
 
-    private Object execute(SSAMethod m, StackFrame frame) {
-        Map<SSAStatement, Object> results = new HashMap<SSAStatement, Object>();
-        Map<SSAStatement, List<SSAStatement>> unifications = new HashMap<SSAStatement, List<SSAStatement>>();
-        SSAStatement[] body = m.getBody().toArray(new SSAStatement[0]);
-        Map<String, Integer> labels = new HashMap<String, Integer>();
+    private static void checkArguments(SSAMethod m, int count) {
+        if (count != m.getMethod().getParameters().size())
+            throw new Error("Call with wrong number of arguments");
+    }
 
-        // map all the labels and unifications
-        for (int bi = 0; bi < body.length; bi++) {
-            SSAStatement s = body[bi];
-            switch (s.getOp()) {
-                case Label:
-                    labels.put((String) s.getSpecial(), Integer.valueOf(bi));
-                    break;
+    // how every inline cache has done
+    public CallSiteStats getCallSiteStats() {
+        CallSiteStats stats = new CallSiteStats();
+        for (PreparedMethod pm : preparedMethods.prepared())
+            for (CallSite<?> site : pm.sites)
+                if (site != null) stats.add(site);
+        for (SlotMethod sm : slotMethods.prepared())
+            for (CallSite<?> site : sm.sites)
+                if (site != null) stats.add(site);
+        return stats;
+    }
 
-                case Unify:
-                case Alias:
-                {
-                    // get the full list
-                    SSAStatement left = s.getLeft();
-                    SSAStatement right = s.getRight();
-                    List<SSAStatement> ulist, rlist;
+    // how often a call found its method already prepared
+    public long getCacheHits() {
+        return preparedMethods.getHits() + slotMethods.getHits();
+    }
 
-                    if (unifications.containsKey(left)) {
-                        ulist = new ArrayList<SSAStatement>(unifications.get(left));
-                    } else {
-                        ulist = new ArrayList<SSAStatement>();
-                        ulist.add(left);
-                    }
+    // how many methods had to be prepared
+    public long getCachePreparations() {
+        return preparedMethods.getPreparations() + slotMethods.getPreparations();
+    }
 
-                    if (right != null) {
-                        if (unifications.containsKey(right)) {
-                            rlist = unifications.get(right);
-                        } else {
-                            rlist = new ArrayList<SSAStatement>();
-                            rlist.add(right);
-                        }
-                        ulist.addAll(rlist);
-                    }
+    // what tiered execution promoted, or null if not running tiered
+    public TierStats getTierStats() {
+        return tierStats;
+    }
 
-                    ulist.add(s);
+    public void printStats(java.io.PrintStream out) {
+        out.println("code cache: " + getCachePreparations() + " preparations, "
+            + getCacheHits() + " hits");
+        out.println(getCallSiteStats());
+        if (tierStats != null)
+            out.println(tierStats);
+    }
 
-                    for (SSAStatement s2 : ulist) {
-                        unifications.put(s2, ulist);
-                    }
-                    break;
-                }
+    private Object execute(SSAMethod m, StackFrame frame) {
+        if (tiered)
+            return enter(preparedMethods.get(m), frame);
+        if (useSlots)
+            return execute(slotMethods.get(m), frame);
+        return execute(preparedMethods.get(m), frame);
+    }
+
+    // call a method in whichever tier it has reached
+    private Object enter(PreparedMethod pm, StackFrame frame) {
+        if (pm.promoted == null && ++pm.invocations >= tierStats.invocationThreshold)
+            promote(pm, TierStats.Reason.INVOCATIONS, false);
+        if (pm.promoted != null)
+            return execute(pm.promoted, frame);
+        return execute(pm, frame);
+    }
+
+    private void promote(PreparedMethod pm, TierStats.Reason reason, boolean osr) {
+        pm.promoted = slotMethods.get(pm.method);
+        tierStats.add(new TierStats.Event(methodName(pm.method), reason, osr,
+            pm.invocations, pm.backEdges));
+    }
+
+    private String methodName(SSAMethod m) {
+        if (m.getMethod() == null) return "main";
+        return methodShapes.get(m).name + "." + m.getMethod().getName();
+    }
+
+    /* Move a running invocation of a promoted method into the slot engine,
+     * continuing from body index pc. Each slot takes the value of the
+     * member of its group which was written last. */
+    private Object replace(PreparedMethod pm, StackFrame frame,
+            Map<SSAStatement, Object> results, long[] stamps, int pc) {
+        SlotMethod sm = pm.promoted;
+        RegisterFile regs = new RegisterFile(sm);
+        long[] latest = new long[sm.numSlots];
+        for (int bi = 0; bi < pm.body.length; bi++) {
+            int d = sm.dst[bi];
+            if (d != SlotMethod.NONE && stamps[bi] > latest[d]) {
+                latest[d] = stamps[bi];
+                regs.put(d, results.get(pm.body[bi]));
             }
         }
+        return execute(sm, frame.thiz, regs, pc, null, SlotMethod.NONE);
+    }
+
+    private Object execute(PreparedMethod pm, StackFrame frame) {
+        Map<SSAStatement, Object> results = new HashMap<SSAStatement, Object>();
+        SSAStatement[] body = pm.body;
+
+        // when each statement was last written, to replace this frame on tier-up
+        long[] stamps = tiered ? new long[body.length] : null;
+        long clock = 0;
 
         // and run it
         for (int bi = 0; bi < body.length; bi++) {
@@ -186,7 +385,7 @@ public class SSAInterpreter {
                     break;
 
                 case NewObj:
-                    result = new IntObject(prog, prog.getClass((String) special));
+                    result = new IntObject(shape((String) special));
                     break;
 
                 case NewIntArray:
@@ -199,7 +398,14 @@ public class SSAInterpreter {
                     break;
 
                 case Goto:
-                    bi = labels.get((String) special).intValue();
+                    if (tiered && pm.targets[bi] < bi) {
+                        // a back-edge: count it, and leave for the slot engine once hot
+                        if (pm.promoted == null && ++pm.backEdges >= tierStats.backEdgeThreshold)
+                            promote(pm, TierStats.Reason.BACK_EDGES, true);
+                        if (pm.promoted != null)
+                            return replace(pm, frame, results, stamps, pm.targets[bi]);
+                    }
+                    bi = pm.targets[bi];
                     break;
 
                 case Branch:
@@ -209,7 +415,7 @@ public class SSAInterpreter {
                     if (op == SSAStatement.Op.NBranch) condition = !condition;
                     if (condition) {
                         // branch
-                        bi = labels.get((String) special).intValue();
+                        bi = pm.targets[bi];
                     }
                     break;
                 }
@@ -217,26 +423,29 @@ public class SSAInterpreter {
                 // Calls:
                 case Call:
                 {
-                    SSACall call = (SSACall) special;
-                    List<SSAStatement> args = call.getArgs();
-                    StackFrame cframe = new StackFrame((IntObject) results.get(left), args.size());
-                    SSAMethod cm = cframe.thiz.methods.get(call.getMethod());
-                    List<Parameter> params = cm.getMethod().getParameters();
-
-                    // match up our arguments to their parameters
-                    if (args.size() != params.size())
-                        throw new Error("Call with wrong number of arguments");
-
-                    Iterator<SSAStatement> argI = args.iterator();
-
-                    int pi = 0;
-                    while (argI.hasNext()) {
-                        Object arg = results.get(argI.next());
-                        cframe.params[pi++] = arg;
+                    SSAStatement[] args = pm.args[bi];
+                    @SuppressWarnings("unchecked")
+                    CallSite<PreparedMethod> site = (CallSite<PreparedMethod>) pm.sites[bi];
+                    StackFrame cframe = new StackFrame((IntObject) results.get(left), args.length);
+                    ClassShape<SSAMethod> shape = cframe.thiz.shape;
+
+                    // find the method, through the inline cache
+                    PreparedMethod cpm = site.lookup(shape);
+                    if (cpm == null) {
+                        SSAMethod cm = shape.lookup(site.method);
+
+                        // match up our arguments to their parameters
+                        checkArguments(cm, args.length);
+
+                        cpm = preparedMethods.get(cm);
+                        site.add(shape, cpm);
                     }
 
+                    for (int pi = 0; pi < args.length; pi++)
+                        cframe.params[pi] = results.get(args[pi]);
+
                     // and run it
-                    result = execute(cm, cframe);
+                    result = tiered ? enter(cpm, cframe) : execute(cpm, cframe);
                     break;
                 }
 
@@ -253,11 +462,13 @@ public class SSAInterpreter {
                 {
                     Object target = results.get(left);
                     String field = (String) special;
-                    if (field.equals("length") && target instanceof int[]) {
+                    if (pm.fieldSlots[bi] != SlotMethod.NONE) {
+                        result = ((IntObject) target).fields[pm.fieldSlots[bi]];
+                    } else if (field.equals("length") && target instanceof int[]) {
                         result = ((int[]) target).length;
                     } else {
                         IntObject obj = (IntObject) target;
-                        result = obj.fields.get(field);
+                        result = obj.fields[obj.shape.fieldSlot(field)];
                     }
                     break;
                 }
@@ -279,7 +490,10 @@ public class SSAInterpreter {
                 {
                     IntObject obj = (IntObject) results.get(left);
                     result = results.get(right);
-                    obj.fields.put((String) special, result);
+                    int fs = pm.fieldSlots[bi];
+                    if (fs == SlotMethod.NONE)
+                        fs = obj.shape.fieldSlot((String) special);
+                    obj.fields[fs] = result;
                     break;
                 }
 
@@ -374,12 +588,258 @@ public class SSAInterpreter {
                     throw new Error("Implement SSA interpreter for " + op);
             }
 
-            if (unifications.containsKey(s)) {
-                for (SSAStatement s2 : unifications.get(s))
+            SSAStatement[] unified = pm.unified[bi];
+            if (unified != null) {
+                for (SSAStatement s2 : unified)
                     results.put(s2, result);
             } else {
                 results.put(s, result);
             }
+            if (stamps != null)
+                stamps[bi] = ++clock;
+        }
+
+        return null;
+    }
+
+    // the slot engine: the same semantics as above, over a register file
+    // enter the slot engine with boxed arguments
+    private Object execute(SlotMethod sm, StackFrame frame) {
+        RegisterFile regs = new RegisterFile(sm);
+        for (int pi = 0; pi < sm.paramSlots.length; pi++)
+            if (sm.paramSlots[pi] != SlotMethod.NONE)
+                regs.put(sm.paramSlots[pi], frame.params[pi]);
+        return execute(sm, frame.thiz, regs, 0, null, SlotMethod.NONE);
+    }
+
+    /* Run from instruction start with the parameters already in place. If
+     * out is given, the return value goes straight to its slot outSlot,
+     * otherwise it is returned boxed. */
+    private Object execute(SlotMethod sm, IntObject thiz, RegisterFile regs, int start,
+            RegisterFile out, int outSlot) {
+        SSAStatement.Op[] ops = sm.ops;
+        int[] dst = sm.dst, a = sm.a, b = sm.b, imm = sm.imm;
+
+        for (int pc = start; pc < ops.length; pc++) {
+            SSAStatement.Op op = ops[pc];
+            int d = dst[pc];
+
+            switch (op) {
+                // Meta (unified statements already share a slot):
+                case Unify:
+                case Alias:
+                    break;
+
+                // Data:
+                case This:
+                    regs.refs[d] = thiz;
+                    break;
+
+                // parameters were put in their slots by the caller
+                case Parameter:
+                    break;
+
+                case Arg:
+                case VarAssg:
+                    regs.copy(a[pc], d);
+                    break;
+
+                case Null:
+                    // imm is the kind of the null value
+                    if (imm[pc] == SlotMethod.INT)
+                        regs.putInt(d, 0);
+                    else if (imm[pc] == SlotMethod.BOOL)
+                        regs.putBoolean(d, false);
+                    else
+                        regs.refs[d] = null;
+                    break;
+
+                case Int:
+                    regs.putInt(d, imm[pc]);
+                    break;
+
+                case Boolean:
+                    regs.putBoolean(d, imm[pc] != 0);
+                    break;
+
+                case NewObj:
+                {
+                    @SuppressWarnings("unchecked")
+                    ClassShape<SSAMethod> shape = (ClassShape<SSAMethod>) sm.classes[pc];
+                    regs.refs[d] = new IntObject(shape);
+                    break;
+                }
+
+                case NewIntArray:
+                    regs.refs[d] = new int[regs.getInt(a[pc])];
+                    break;
+
+                // Control flow:
+                case Label:
+                    break;
+
+                case Goto:
+                    pc = imm[pc];
+                    break;
+
+                case Branch:
+                    if (regs.getBoolean(a[pc])) pc = imm[pc];
+                    break;
+
+                case NBranch:
+                    if (!regs.getBoolean(a[pc])) pc = imm[pc];
+                    break;
+
+                // Calls:
+                case Call:
+                {
+                    int[] args = sm.args[pc];
+                    @SuppressWarnings("unchecked")
+                    CallSite<SlotMethod> site = (CallSite<SlotMethod>) sm.sites[pc];
+                    IntObject target = (IntObject) regs.refs[a[pc]];
+                    ClassShape<SSAMethod> shape = target.shape;
+
+                    SlotMethod csm = site.lookup(shape);
+                    if (csm == null) {
+                        SSAMethod cm;
+                        if (imm[pc] != SlotMethod.NONE)
+                            cm = shape.method(imm[pc]);
+                        else
+                            cm = shape.lookup(site.method);
+                        checkArguments(cm, args.length);
+
+                        if (tiered) {
+                            // only cache methods which have been promoted
+                            PreparedMethod cpm = preparedMethods.get(cm);
+                            if (cpm.promoted == null) {
+                                // not hot yet, so call it boxed through its counters
+                                StackFrame cframe = new StackFrame(target, args.length);
+                                for (int pi = 0; pi < args.length; pi++)
+                                    cframe.params[pi] = regs.get(args[pi]);
+                                regs.put(d, enter(cpm, cframe));
+                                break;
+                            }
+                            csm = cpm.promoted;
+                        } else {
+                            csm = slotMethods.get(cm);
+                        }
+                        site.add(shape, csm);
+                    }
+
+                    // arguments go straight to the callee's registers, and
+                    // it returns straight to ours
+                    RegisterFile cregs = new RegisterFile(csm);
+                    int[] paramSlots = csm.paramSlots;
+                    for (int pi = 0; pi < args.length; pi++)
+                        if (paramSlots[pi] != SlotMethod.NONE)
+                            cregs.copyFrom(regs, args[pi], paramSlots[pi]);
+                    execute(csm, target, cregs, 0, regs, d);
+                    break;
+                }
+
+                case Print:
+                    if (regs.kinds[a[pc]] == SlotMethod.INT)
+                        System.out.println((int) regs.prims[a[pc]]);
+                    else
+                        System.out.println(regs.get(a[pc]));
+                    break;
+
+                case Return:
+                    if (out != null) {
+                        out.copyFrom(regs, a[pc], outSlot);
+                        return null;
+                    }
+                    return regs.get(a[pc]);
+
+                // Member access:
+                case Member:
+                {
+                    Object target = regs.refs[a[pc]];
+                    String field = sm.names[pc];
+                    if (imm[pc] != SlotMethod.NONE) {
+                        regs.put(d, ((IntObject) target).fields[imm[pc]]);
+                    } else if (field.equals("length") && target instanceof int[]) {
+                        regs.putInt(d, ((int[]) target).length);
+                    } else {
+                        IntObject obj = (IntObject) target;
+                        regs.put(d, obj.fields[obj.shape.fieldSlot(field)]);
+                    }
+                    break;
+                }
+
+                case Index:
+                    regs.putInt(d, ((int[]) regs.refs[a[pc]])[regs.getInt(b[pc])]);
+                    break;
+
+                // Assignment:
+                case MemberAssg:
+                {
+                    IntObject obj = (IntObject) regs.refs[a[pc]];
+                    int fs = imm[pc];
+                    if (fs == SlotMethod.NONE)
+                        fs = obj.shape.fieldSlot(sm.names[pc]);
+                    obj.fields[fs] = regs.get(b[pc]);
+                    regs.copy(b[pc], d);
+                    break;
+                }
+
+                case IndexAssg:
+                    ((int[]) regs.refs[a[pc]])[regs.getInt(sm.c[pc])] = regs.getInt(b[pc]);
+                    regs.copy(b[pc], d);
+                    break;
+
+                // Unary operator:
+                case Not:
+                    if (regs.kinds[a[pc]] == SlotMethod.REF)
+                        regs.putBoolean(d, regs.refs[a[pc]] == Boolean.FALSE);
+                    else
+                        regs.putBoolean(d, regs.prims[a[pc]] == 0);
+                    break;
+
+                // int-valued operators
+                case Lt: regs.putBoolean(d, regs.getInt(a[pc]) < regs.getInt(b[pc])); break;
+                case Le: regs.putBoolean(d, regs.getInt(a[pc]) <= regs.getInt(b[pc])); break;
+                case Gt: regs.putBoolean(d, regs.getInt(a[pc]) > regs.getInt(b[pc])); break;
+                case Ge: regs.putBoolean(d, regs.getInt(a[pc]) >= regs.getInt(b[pc])); break;
+                case Plus: regs.putInt(d, regs.getInt(a[pc]) + regs.getInt(b[pc])); break;
+                case Minus: regs.putInt(d, regs.getInt(a[pc]) - regs.getInt(b[pc])); break;
+                case Mul: regs.putInt(d, regs.getInt(a[pc]) * regs.getInt(b[pc])); break;
+                case Div: regs.putInt(d, regs.getInt(a[pc]) / regs.getInt(b[pc])); break;
+                case Mod: regs.putInt(d, regs.getInt(a[pc]) % regs.getInt(b[pc])); break;
+
+                // boolean-valued operators
+                case And: regs.putBoolean(d, regs.getBoolean(a[pc]) & regs.getBoolean(b[pc])); break;
+                case Or: regs.putBoolean(d, regs.getBoolean(a[pc]) | regs.getBoolean(b[pc])); break;
+
+                // equality operators
+                case Eq:
+                case Ne:
+                {
+                    int l = a[pc], r = b[pc];
+                    byte lk = regs.kinds[l], rk = regs.kinds[r];
+                    boolean eq;
+
+                    if (lk != SlotMethod.REF && lk == rk) {
+                        eq = regs.prims[l] == regs.prims[r];
+                    } else {
+                        // same rules as for boxed results
+                        Object lo = regs.get(l);
+                        Object ro = regs.get(r);
+                        if (lo instanceof Integer)
+                            eq = lo.equals(ro);
+                        else if (ro instanceof Integer)
+                            eq = false;
+                        else
+                            eq = lo == ro;
+                    }
+
+                    regs.putBoolean(d, (op == SSAStatement.Op.Eq) == eq);
+                    break;
+                }
+
+                default:
+                    throw new Error("Implement SSA interpreter for " + op);
+            }
         }
 
         return null;
@@ -0,0 +1,341 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ast.*;
+import edu.purdue.cs352.minijava.ssa.*;
+import edu.purdue.cs352.minijava.types.*;
+
+/* An SSAMethod flattened for the slot engine of SSAInterpreter. Every
+ * value-producing statement is given a dense slot number in a per-frame
+ * register file, statements joined by Unify or Alias share one slot, and
+ * labels are resolved to statement indices, so that running a statement
+ * is a handful of array reads rather than hash lookups. Instruction i of
+ * the flattened form is statement i of the method body. */
+final class SlotMethod {
+    // no slot (for statements which produce no value)
+    static final int NONE = -1;
+
+    // the kinds of slot: boxed values, or unboxed ints and booleans
+    static final byte REF = 0;
+    static final byte INT = 1;
+    static final byte BOOL = 2;
+
+    // not yet known, only used while inferring kinds
+    private static final byte UNKNOWN = 3;
+
+    final SSAMethod method;
+
+    final SSAStatement.Op[] ops;
+
+    // slot written by each instruction, and the slots of its operands
+    final int[] dst;
+    final int[] a;  // left
+    final int[] b;  // right
+    final int[] c;  // index of IndexAssg
+
+    // immediates: constant values, parameter positions, jump targets, the
+    // kinds of Null values, and field and vtable slots (or NONE if they
+    // have to be looked up by name in the object's shape)
+    final int[] imm;
+
+    // the classes instantiated by NewObj
+    final ClassShape<?>[] classes;
+
+    // names of members, classes and methods
+    final String[] names;
+
+    // argument slots and inline caches of calls
+    final int[][] args;
+    final CallSite<?>[] sites;
+
+    // the kind of each slot
+    final byte[] kinds;
+    final int numSlots;
+
+    // the slot of each parameter (or NONE if it is never read), which the
+    // caller fills in directly
+    final int[] paramSlots;
+
+    SlotMethod(SSAMethod method, Map<String, ClassShape<SSAMethod>> shapes,
+            ClassShape<SSAMethod> thisShape) {
+        this.method = method;
+
+        SSAStatement[] body = method.getBody().toArray(new SSAStatement[0]);
+        int n = body.length;
+
+        Map<SSAStatement, Integer> indices = new IdentityHashMap<SSAStatement, Integer>();
+        for (int i = 0; i < n; i++)
+            indices.put(body[i], i);
+        ControlFlowGraph cfg = method.getCFG();
+
+        // join unified statements
+        int[] group = new int[n];
+        for (int i = 0; i < n; i++)
+            group[i] = i;
+        for (int i = 0; i < n; i++) {
+            SSAStatement s = body[i];
+            if (s.getOp() == SSAStatement.Op.Unify || s.getOp() == SSAStatement.Op.Alias) {
+                join(group, i, index(indices, s.getLeft()));
+                if (s.getRight() != null)
+                    join(group, i, index(indices, s.getRight()));
+            }
+        }
+
+        // one slot per group of value-producing statements
+        int[] groupSlot = new int[n];
+        Arrays.fill(groupSlot, NONE);
+        int slots = 0;
+        dst = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (!producesValue(body[i].getOp())) {
+                dst[i] = NONE;
+                continue;
+            }
+            int g = find(group, i);
+            if (groupSlot[g] == NONE)
+                groupSlot[g] = slots++;
+            dst[i] = groupSlot[g];
+        }
+        numSlots = slots;
+
+        // flatten the statements
+        ops = new SSAStatement.Op[n];
+        a = new int[n];
+        b = new int[n];
+        c = new int[n];
+        imm = new int[n];
+        names = new String[n];
+        classes = new ClassShape<?>[n];
+        args = new int[n][];
+        sites = new CallSite<?>[n];
+        for (int i = 0; i < n; i++) {
+            SSAStatement s = body[i];
+            Object special = s.getSpecial();
+            ops[i] = s.getOp();
+            a[i] = slot(indices, s.getLeft());
+            b[i] = slot(indices, s.getRight());
+            c[i] = NONE;
+
+            switch (s.getOp()) {
+                case Parameter:
+                case Int:
+                    imm[i] = ((Integer) special).intValue();
+                    break;
+
+                case Boolean:
+                    imm[i] = ((Boolean) special).booleanValue() ? 1 : 0;
+                    break;
+
+                case Null:
+                    imm[i] = nullKind((Type) special);
+                    break;
+
+                case Goto:
+                case Branch:
+                case NBranch:
+                    imm[i] = cfg.jumpTarget(i);
+                    break;
+
+                case NewObj:
+                    names[i] = (String) special;
+                    classes[i] = shapes.get(names[i]);
+                    if (classes[i] == null)
+                        throw new Error("Unknown class " + names[i]);
+                    break;
+
+                case Member:
+                case MemberAssg:
+                {
+                    ClassShape<SSAMethod> shape = staticShape(s.getLeft(), shapes, thisShape);
+                    names[i] = (String) special;
+                    imm[i] = NONE;
+                    if (shape != null && shape.hasField(names[i]))
+                        imm[i] = shape.fieldSlot(names[i]);
+                    break;
+                }
+
+                case Call:
+                {
+                    SSACall call = (SSACall) special;
+                    List<SSAStatement> cargs = call.getArgs();
+                    ClassShape<SSAMethod> shape = staticShape(s.getLeft(), shapes, thisShape);
+                    names[i] = call.getMethod();
+                    sites[i] = new CallSite<SlotMethod>(names[i]);
+                    imm[i] = NONE;
+                    if (shape != null && shape.hasMethod(names[i]))
+                        imm[i] = shape.methodSlot(names[i]);
+                    args[i] = new int[cargs.size()];
+                    for (int ai = 0; ai < args[i].length; ai++)
+                        args[i][ai] = slot(indices, cargs.get(ai));
+                    break;
+                }
+
+                case IndexAssg:
+                    c[i] = slot(indices, (SSAStatement) special);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        int numParams = method.getMethod() == null ? 0 : method.getMethod().getParameters().size();
+        paramSlots = new int[numParams];
+        Arrays.fill(paramSlots, NONE);
+        for (int i = 0; i < n; i++)
+            if (ops[i] == SSAStatement.Op.Parameter)
+                paramSlots[imm[i]] = dst[i];
+
+        kinds = inferKinds(body);
+    }
+
+    /* The class of the object this statement produces, if it can be known
+     * here, from its type or from how it is made. Since slots of a class
+     * are valid for its subclasses, that is enough to resolve fields and
+     * methods. */
+    static ClassShape<SSAMethod> staticShape(SSAStatement s,
+            Map<String, ClassShape<SSAMethod>> shapes, ClassShape<SSAMethod> thisShape) {
+        StaticType type = s.getType();
+        if (type instanceof ObjectType)
+            return shapes.get(((ObjectType) type).getName());
+
+        switch (s.getOp()) {
+            case This:
+                return thisShape;
+            case NewObj:
+                return shapes.get((String) s.getSpecial());
+            default:
+                return null;
+        }
+    }
+
+    // does this operation produce a value which may be read later?
+    private static boolean producesValue(SSAStatement.Op op) {
+        switch (op) {
+            case Label:
+            case Goto:
+            case Branch:
+            case NBranch:
+            case Print:
+            case Return:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /* Figure out which slots can be kept unboxed. A slot is an int or
+     * boolean slot if every statement writing it produces one. If the
+     * program has been type checked, that is known from each statement's
+     * type; otherwise it is inferred from the operations, and anything
+     * whose kind depends on values from outside the method is boxed. */
+    private byte[] inferKinds(SSAStatement[] body) {
+        byte[] slotKinds = new byte[numSlots];
+        Arrays.fill(slotKinds, UNKNOWN);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < body.length; i++) {
+                if (dst[i] == NONE) continue;
+                byte k = kindOf(i, body[i], slotKinds);
+                if (k == UNKNOWN) continue;
+                byte old = slotKinds[dst[i]];
+                byte merged = (old == UNKNOWN || old == k) ? k : REF;
+                if (merged != old) {
+                    slotKinds[dst[i]] = merged;
+                    changed = true;
+                }
+            }
+        }
+
+        // anything never determined (e.g. a cycle of copies) stays boxed
+        for (int si = 0; si < numSlots; si++)
+            if (slotKinds[si] == UNKNOWN) slotKinds[si] = REF;
+
+        return slotKinds;
+    }
+
+    private byte kindOf(int i, SSAStatement s, byte[] slotKinds) {
+        StaticType type = s.getType();
+        if (type instanceof PrimitiveType.IntType) return INT;
+        if (type instanceof PrimitiveType.BooleanType) return BOOL;
+        if (type != null) return REF;
+
+        switch (s.getOp()) {
+            case Int:
+            case Index:
+            case Plus:
+            case Minus:
+            case Mul:
+            case Div:
+            case Mod:
+                return INT;
+
+            case Boolean:
+            case Not:
+            case Lt:
+            case Le:
+            case Gt:
+            case Ge:
+            case Eq:
+            case Ne:
+            case And:
+            case Or:
+                return BOOL;
+
+            case Null:
+                return nullKind((Type) s.getSpecial());
+
+            // unified statements already share their operands' slot
+            case Unify:
+            case Alias:
+                return UNKNOWN;
+
+            // copies take the kind of what they copy
+            case Arg:
+            case VarAssg:
+                return slotKinds[a[i]];
+
+            // stores produce the stored value
+            case MemberAssg:
+            case IndexAssg:
+                return slotKinds[b[i]];
+
+            default:
+                return REF;
+        }
+    }
+
+    // the kind of the value of a Null of this type
+    private static byte nullKind(Type ntype) {
+        if (ntype instanceof TypeInt) return INT;
+        if (ntype instanceof TypeBoolean) return BOOL;
+        return REF;
+    }
+
+    private static int index(Map<SSAStatement, Integer> indices, SSAStatement s) {
+        Integer i = indices.get(s);
+        if (i == null)
+            throw new Error("Statement " + s.getIndex() + " is not in the method body");
+        return i.intValue();
+    }
+
+    private int slot(Map<SSAStatement, Integer> indices, SSAStatement s) {
+        if (s == null) return NONE;
+        return dst[index(indices, s)];
+    }
+
+    private static int find(int[] group, int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    private static void join(int[] group, int i, int j) {
+        group[find(group, i)] = find(group, j);
+    }
+}
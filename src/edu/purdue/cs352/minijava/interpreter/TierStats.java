@@ -0,0 +1,61 @@
+package edu.purdue.cs352.minijava.interpreter;
+
+import java.util.*;
+
+/* What tiered execution did: the thresholds at which a method is promoted
+ * from the prepared SSA engine to the slot engine, and every promotion. */
+public final class TierStats {
+    // what made a method hot
+    public enum Reason { INVOCATIONS, BACK_EDGES }
+
+    public static final class Event {
+        public final String method;
+        public final Reason reason;
+
+        // whether a running invocation moved to the new tier mid-loop
+        public final boolean osr;
+
+        // the method's counters when it was promoted
+        public final int invocations, backEdges;
+
+        Event(String method, Reason reason, boolean osr, int invocations, int backEdges) {
+            this.method = method;
+            this.reason = reason;
+            this.osr = osr;
+            this.invocations = invocations;
+            this.backEdges = backEdges;
+        }
+
+        @Override public String toString() {
+            return method + " promoted on " + (reason == Reason.INVOCATIONS ? "invocations" : "back-edges")
+                + " (" + invocations + " invocations, " + backEdges + " back-edges)"
+                + (osr ? ", replaced on stack" : "");
+        }
+    }
+
+    public final int invocationThreshold, backEdgeThreshold;
+    private final List<Event> events = new ArrayList<Event>();
+
+    TierStats(int invocationThreshold, int backEdgeThreshold) {
+        this.invocationThreshold = invocationThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+    }
+
+    void add(Event event) {
+        events.add(event);
+    }
+
+    public List<Event> getEvents() {
+        return Collections.unmodifiableList(events);
+    }
+
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tiers: ").append(events.size()).append(" promotions (thresholds: ")
+            .append(invocationThreshold).append(" invocations, ")
+            .append(backEdgeThreshold).append(" back-edges)");
+        for (Event event : events)
+            sb.append("\n  ").append(event);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* Dead code elimination, by mark and sweep: everything with an effect is
+ * needed, and so is everything a needed statement uses. Reading one of a
+ * group of unified statements reads whatever any of them wrote, so a group
+ * is needed whole or not at all.
+ *
+ * Loads (Member, Index) and Div and Mod count as having no effect, since the
+ * MIPS backend doesn't check them either. */
+class DCE {
+    static void run(SSAMethod m, Optimizer.Stats stats) {
+        List<SSAStatement> body = m.getBody();
+
+        Groups groups = new Groups(body);
+
+        Set<SSAStatement> needed = new HashSet<SSAStatement>();
+        Deque<SSAStatement> work = new ArrayDeque<SSAStatement>();
+        for (SSAStatement s : body) {
+            if (hasEffect(s.getOp()) && needed.add(s))
+                work.push(s);
+        }
+        while (!work.isEmpty()) {
+            SSAStatement s = work.pop();
+            for (SSAStatement used : Optimizer.operands(s)) {
+                for (SSAStatement member : groups.members(used)) {
+                    if (needed.add(member))
+                        work.push(member);
+                }
+            }
+        }
+
+        if (needed.size() == body.size())
+            return;
+        List<SSAStatement> newBody = new ArrayList<SSAStatement>(needed.size());
+        for (SSAStatement s : body) {
+            if (needed.contains(s))
+                newBody.add(s);
+        }
+        stats.dead += body.size() - newBody.size();
+        m.setBody(newBody);
+    }
+
+    // is this needed whether or not its value is?
+    private static boolean hasEffect(SSAStatement.Op op) {
+        switch (op) {
+            // calls, allocation and stores
+            case Call:
+            case Print:
+            case NewObj:
+            case NewIntArray:
+            case MemberAssg:
+            case IndexAssg:
+            case Store:
+
+            // control flow
+            case Label:
+            case Goto:
+            case Branch:
+            case NBranch:
+            case Return:
+
+            // the backends put the parameters where they arrive
+            case Parameter:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
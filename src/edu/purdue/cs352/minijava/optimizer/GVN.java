@@ -0,0 +1,292 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* Dominator-based global value numbering: walking down the dominator tree, a
+ * pure computation or load which a dominating statement already did, on the
+ * same operands, is replaced by that statement.
+ *
+ * Operands are numbered by what they read: the group of unified statements
+ * along with how many times it has been written so far, so a computation
+ * only matches while neither its operands nor the memory it loads from can
+ * have been written in between. Going down the tree to a block, everything
+ * written on the way from its immediate dominator (including around loops)
+ * counts as written. Constants and This are numbered by value, but are left
+ * alone themselves, since they're cheaper to redo than to keep in a register. */
+class GVN {
+    // what's written besides groups: fields (by name), any array element,
+    // and anything in memory at all (by a call)
+    private static final Object ARRAYS = new Object(), MEMORY = new Object();
+    private static final Object THIS = new Object();
+
+    private final List<SSAStatement> body;
+    private final ControlFlowGraph cfg;
+    private final Groups groups;
+
+    // how many times each group (by root), field, ARRAYS and MEMORY have
+    // been written on the way here, and what the walk has to undo on the way
+    // back up
+    private final Map<Object, Integer> versions = new HashMap<Object, Integer>();
+    private final List<Object> versionUndo = new ArrayList<Object>();
+
+    // the computations available here, with the version of the leader's own
+    // group when it was computed
+    private final Map<List<Object>, SSAStatement> available = new HashMap<List<Object>, SSAStatement>();
+    private final Map<SSAStatement, Integer> leaderVersions = new HashMap<SSAStatement, Integer>();
+    private final List<Object> availableUndo = new ArrayList<Object>();
+
+    // operands are numbered densely in the order they're met
+    private final Map<Object, Integer> numbers = new HashMap<Object, Integer>();
+
+    private final Map<SSAStatement, SSAStatement> replaced = new HashMap<SSAStatement, SSAStatement>();
+
+    private GVN(SSAMethod m) {
+        body = m.getBody();
+        cfg = m.getCFG();
+        groups = new Groups(body);
+    }
+
+    static void run(SSAMethod m, Optimizer.Stats stats) {
+        if (m.getBody().isEmpty())
+            return;
+        GVN gvn = new GVN(m);
+        gvn.walk();
+        if (gvn.replaced.isEmpty())
+            return;
+
+        List<SSAStatement> newBody = new ArrayList<SSAStatement>();
+        for (SSAStatement s : m.getBody()) {
+            if (!gvn.replaced.containsKey(s)) {
+                Optimizer.replaceOperands(s, gvn.replaced);
+                newBody.add(s);
+            }
+        }
+        stats.redundant += gvn.replaced.size();
+        m.setBody(newBody);
+    }
+
+    // depth first down the dominator tree, without recursion since it can
+    // be as deep as the body is long
+    private void walk() {
+        Deque<ControlFlowGraph.Block> blocks = new ArrayDeque<ControlFlowGraph.Block>();
+        Deque<Integer> next = new ArrayDeque<Integer>();
+        Deque<int[]> marks = new ArrayDeque<int[]>();
+
+        enter(cfg.getEntry(), marks);
+        blocks.push(cfg.getEntry());
+        next.push(0);
+        while (!blocks.isEmpty()) {
+            ControlFlowGraph.Block b = blocks.peek();
+            int ci = next.pop();
+            if (ci < b.getDomChildren().size()) {
+                next.push(ci + 1);
+                ControlFlowGraph.Block child = b.getDomChildren().get(ci);
+                enter(child, marks);
+                blocks.push(child);
+                next.push(0);
+            } else {
+                blocks.pop();
+                leave(marks.pop());
+            }
+        }
+    }
+
+    private void enter(ControlFlowGraph.Block b, Deque<int[]> marks) {
+        marks.push(new int[] {versionUndo.size(), availableUndo.size()});
+        for (Object written : writtenOnTheWay(b))
+            write(written);
+
+        for (int i = b.getStart(); i < b.getEnd(); i++) {
+            SSAStatement s = body.get(i);
+            if (replaceable(s.getOp()) && groups.alone(s)) {
+                List<Object> key = key(s);
+                SSAStatement leader = available.get(key);
+                if (leader != null && version(groups.of(leader)) == leaderVersions.get(leader).intValue()) {
+                    replaced.put(s, leader);
+                    continue;
+                }
+                write(groups.find(i));
+                availableUndo.add(key);
+                availableUndo.add(available.put(key, s));
+                leaderVersions.put(s, version(groups.find(i)));
+                continue;
+            }
+            for (Object written : writes(s, i))
+                write(written);
+        }
+    }
+
+    private void leave(int[] mark) {
+        for (int i = versionUndo.size() - 2; i >= mark[0]; i -= 2)
+            versions.put(versionUndo.get(i), (Integer) versionUndo.get(i + 1));
+        truncate(versionUndo, mark[0]);
+
+        for (int i = availableUndo.size() - 2; i >= mark[1]; i -= 2) {
+            @SuppressWarnings("unchecked")
+            List<Object> key = (List<Object>) availableUndo.get(i);
+            SSAStatement old = (SSAStatement) availableUndo.get(i + 1);
+            if (old == null)
+                available.remove(key);
+            else
+                available.put(key, old);
+        }
+        truncate(availableUndo, mark[1]);
+    }
+
+    private static void truncate(List<Object> list, int size) {
+        list.subList(size, list.size()).clear();
+    }
+
+    private int version(Object what) {
+        Integer ret = versions.get(what);
+        return ret == null ? 0 : ret.intValue();
+    }
+
+    private void write(Object what) {
+        int old = version(what);
+        versionUndo.add(what);
+        versionUndo.add(Integer.valueOf(old));
+        versions.put(what, Integer.valueOf(old + 1));
+    }
+
+    // what the statement at body index i writes
+    private List<Object> writes(SSAStatement s, int i) {
+        List<Object> ret = new ArrayList<Object>(2);
+        switch (s.getOp()) {
+            case Unify:
+            case Alias:
+                return ret;
+            case MemberAssg:
+                ret.add(s.getSpecial());
+                break;
+            case IndexAssg:
+                ret.add(ARRAYS);
+                break;
+            case Call:
+                ret.add(MEMORY);
+                break;
+            default:
+        }
+        ret.add(Integer.valueOf(groups.find(i)));
+        return ret;
+    }
+
+    // everything written in the blocks which reach b without going through
+    // its immediate dominator (b itself too, if it's in a loop below it)
+    private Set<Object> writtenOnTheWay(ControlFlowGraph.Block b) {
+        Set<Object> ret = new HashSet<Object>();
+        ControlFlowGraph.Block idom = b.getIdom();
+        if (idom == null)
+            return ret;
+        int[] preds = b.getPreds();
+        if (preds.length == 1 && preds[0] == idom.getIndex())
+            return ret;
+
+        boolean[] seen = new boolean[cfg.getBlocks().size()];
+        seen[idom.getIndex()] = true;
+        Deque<ControlFlowGraph.Block> work = new ArrayDeque<ControlFlowGraph.Block>();
+        for (int pi : preds)
+            work.push(cfg.getBlock(pi));
+        while (!work.isEmpty()) {
+            ControlFlowGraph.Block x = work.pop();
+            if (seen[x.getIndex()] || !x.isReachable())
+                continue;
+            seen[x.getIndex()] = true;
+            for (int i = x.getStart(); i < x.getEnd(); i++)
+                ret.addAll(writes(body.get(i), i));
+            for (int pi : x.getPreds())
+                work.push(cfg.getBlock(pi));
+        }
+        return ret;
+    }
+
+    private static boolean replaceable(SSAStatement.Op op) {
+        switch (op) {
+            case Member:
+            case Index:
+            case Not:
+            case Lt: case Le: case Eq: case Ne: case Gt: case Ge:
+            case And: case Or:
+            case Plus: case Minus:
+            case Mul: case Div: case Mod:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean commutative(SSAStatement.Op op) {
+        switch (op) {
+            case Eq: case Ne:
+            case And: case Or:
+            case Plus: case Mul:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // what s computes, in terms of the numbers of its operands (and the
+    // versions of the memory it loads from)
+    private List<Object> key(SSAStatement s) {
+        List<Object> key = new ArrayList<Object>(5);
+        key.add(s.getOp());
+        switch (s.getOp()) {
+            case Member:
+                key.add(s.getSpecial());
+                key.add(number(s.getLeft()));
+                key.add(version(s.getSpecial()));
+                key.add(version(MEMORY));
+                break;
+            case Index:
+                key.add(number(s.getLeft()));
+                key.add(number(s.getRight()));
+                key.add(version(ARRAYS));
+                key.add(version(MEMORY));
+                break;
+            case Not:
+                key.add(number(s.getLeft()));
+                break;
+            default: {
+                int a = number(s.getLeft()), b = number(s.getRight());
+                if (commutative(s.getOp()) && b < a) {
+                    int t = a; a = b; b = t;
+                }
+                key.add(a);
+                key.add(b);
+            }
+        }
+        return key;
+    }
+
+    // the number of the value s reads
+    private int number(SSAStatement s) {
+        SSAStatement to = replaced.get(s);
+        if (to != null)
+            s = to;
+
+        Object value;
+        switch (s.getOp()) {
+            case Int:
+            case Boolean:
+                value = s.getSpecial();
+                break;
+            case This:
+                value = THIS;
+                break;
+            default: {
+                int g = groups.of(s);
+                value = Arrays.asList(g, version(g));
+            }
+        }
+
+        Integer ret = numbers.get(value);
+        if (ret == null) {
+            ret = Integer.valueOf(numbers.size());
+            numbers.put(value, ret);
+        }
+        return ret.intValue();
+    }
+}
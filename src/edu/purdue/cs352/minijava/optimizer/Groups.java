@@ -0,0 +1,91 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* The groups of unified statements of a body, by union-find over body
+ * indices. Every statement is in one, most of them alone. */
+class Groups {
+    private final List<SSAStatement> body;
+    private final Map<SSAStatement, Integer> indexOf = new HashMap<SSAStatement, Integer>();
+    private final int[] parent, size;
+
+    // the members of each group, at its root (made when first asked for)
+    private List<List<SSAStatement>> members;
+
+    Groups(List<SSAStatement> body) {
+        this.body = body;
+        int n = body.size();
+        for (int i = 0; i < n; i++)
+            indexOf.put(body.get(i), i);
+
+        parent = new int[n];
+        size = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+        for (int i = 0; i < n; i++) {
+            SSAStatement s = body.get(i);
+            if (s.getOp() == SSAStatement.Op.Unify || s.getOp() == SSAStatement.Op.Alias) {
+                union(i, index(s.getLeft()));
+                if (s.getRight() != null)
+                    union(i, index(s.getRight()));
+            }
+        }
+    }
+
+    // the body index of s
+    int index(SSAStatement s) {
+        Integer ret = indexOf.get(s);
+        if (ret == null)
+            throw new Error("Statement " + s + " is used but not in the body");
+        return ret.intValue();
+    }
+
+    // the group of the statement at body index i, by the index of its root
+    int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    int of(SSAStatement s) {
+        return find(index(s));
+    }
+
+    // is s unified with nothing?
+    boolean alone(SSAStatement s) {
+        return size[of(s)] == 1;
+    }
+
+    List<SSAStatement> members(SSAStatement s) {
+        if (members == null) {
+            members = new ArrayList<List<SSAStatement>>(body.size());
+            for (int i = 0; i < body.size(); i++)
+                members.add(null);
+            for (int i = 0; i < body.size(); i++) {
+                int g = find(i);
+                if (members.get(g) == null)
+                    members.set(g, new ArrayList<SSAStatement>(size[g]));
+                members.get(g).add(body.get(i));
+            }
+        }
+        return members.get(of(s));
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b)
+            return;
+        if (size[a] < size[b]) {
+            int t = a; a = b; b = t;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+    }
+}
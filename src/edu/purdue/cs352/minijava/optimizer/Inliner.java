@@ -0,0 +1,274 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+import edu.purdue.cs352.minijava.types.*;
+
+/* Inlining: a Call which can only go to one method (the target was just made
+ * with new, or nothing below its static type overrides the method) is
+ * replaced by a copy of that method's body. The Args become VarAssgs where
+ * they were, as a later argument can assign to what an earlier one read. In
+ * the copy, Parameters become VarAssgs of those (so the callee can still
+ * assign to its parameters) and This a VarAssg of the target, which the
+ * copy can't assign to, so it reads what the Call would have. The Return
+ * becomes a VarAssg of the returned value which takes the Call's place, and
+ * the labels are renamed apart from the caller's.
+ *
+ * Only small methods with their one Return at the end are inlined, into
+ * callers which aren't too big yet, and only so deep. Callees are done
+ * before their callers, so what's inlined may have had calls inlined into it
+ * already. As with the loads DCE drops, a call on null no longer faults if
+ * the body inlined never goes through this. */
+class Inliner {
+    // the most statements a method to inline can have, the most a caller can
+    // grow to, and how deep inlined calls can nest
+    private static final int MAX_CALLEE = 40, MAX_CALLER = 2000, MAX_DEPTH = 3;
+
+    private final SSAProgram prog;
+
+    // how deep the calls inlined into each method nest
+    private final Map<SSAMethod, Integer> depth = new HashMap<SSAMethod, Integer>();
+
+    private Inliner(SSAProgram prog) {
+        this.prog = prog;
+    }
+
+    // inline what can be into each of these methods of prog, returning how
+    // many calls were inlined into each
+    static int[] run(SSAProgram prog, List<SSAMethod> methods) {
+        Inliner inliner = new Inliner(prog);
+
+        List<SSAMethod> order = new ArrayList<SSAMethod>();
+        Set<SSAMethod> visited = new HashSet<SSAMethod>();
+        for (SSAMethod m : methods)
+            inliner.postOrder(m, visited, order);
+
+        Map<SSAMethod, Integer> counts = new HashMap<SSAMethod, Integer>();
+        for (SSAMethod m : order)
+            counts.put(m, inliner.inlineInto(m));
+
+        int[] ret = new int[methods.size()];
+        for (int i = 0; i < ret.length; i++) {
+            Integer count = counts.get(methods.get(i));
+            ret[i] = count == null ? 0 : count.intValue();
+        }
+        return ret;
+    }
+
+    // the methods m can call, after it
+    private void postOrder(SSAMethod m, Set<SSAMethod> visited, List<SSAMethod> order) {
+        if (!visited.add(m))
+            return;
+        for (SSAStatement s : m.getBody()) {
+            if (s.getOp() == SSAStatement.Op.Call) {
+                SSAMethod callee = callee(s);
+                if (callee != null)
+                    postOrder(callee, visited, order);
+            }
+        }
+        order.add(m);
+    }
+
+    // the one method this Call can go to, if there is one
+    private SSAMethod callee(SSAStatement call) {
+        SSAStatement target = call.getLeft();
+        String name = ((SSACall) call.getSpecial()).getMethod();
+
+        if (target.getOp() == SSAStatement.Op.NewObj) {
+            SSAClass cl = prog.getClass((String) target.getSpecial());
+            return cl == null ? null : cl.getMethod(prog, name);
+        }
+
+        if (!(target.getType() instanceof ObjectType))
+            return null;
+        SSAClass cl = prog.getClass(((ObjectType) target.getType()).getName());
+        if (cl == null || overridden(cl, name))
+            return null;
+        return cl.getMethod(prog, name);
+    }
+
+    // does any subclass of cl override this method?
+    private boolean overridden(SSAClass cl, String name) {
+        for (SSAClass sub : prog.getClassesOrdered()) {
+            if (sub == cl || sub.getMethod(name) == null)
+                continue;
+            for (SSAClass sup = sub.superclass(prog); sup != null; sup = sup.superclass(prog)) {
+                if (sup == cl)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inlinable(SSAMethod m) {
+        List<SSAStatement> body = m.getBody();
+        if (m.getMethod() == null || body.isEmpty() || body.size() > MAX_CALLEE)
+            return false;
+        for (int i = 0; i < body.size() - 1; i++) {
+            if (body.get(i).getOp() == SSAStatement.Op.Return)
+                return false;
+        }
+        return body.get(body.size() - 1).getOp() == SSAStatement.Op.Return;
+    }
+
+    private int depthOf(SSAMethod m) {
+        Integer ret = depth.get(m);
+        return ret == null ? 0 : ret.intValue();
+    }
+
+    private int inlineInto(SSAMethod caller) {
+        List<SSAStatement> body = caller.getBody();
+
+        // which calls to inline, and the Args going with them (to the
+        // method they're for)
+        Map<SSAStatement, SSAMethod> inline = new HashMap<SSAStatement, SSAMethod>();
+        Map<SSAStatement, SSAMethod> args = new HashMap<SSAStatement, SSAMethod>();
+        int size = body.size(), callerDepth = depthOf(caller);
+        for (SSAStatement s : body) {
+            if (s.getOp() != SSAStatement.Op.Call)
+                continue;
+            SSAMethod callee = callee(s);
+            if (callee == null || callee == caller || !inlinable(callee)
+                    || depthOf(callee) + 1 > MAX_DEPTH
+                    || size + callee.getBody().size() > MAX_CALLER)
+                continue;
+            inline.put(s, callee);
+            for (SSAStatement arg : ((SSACall) s.getSpecial()).getArgs())
+                args.put(arg, callee);
+            size += callee.getBody().size();
+            callerDepth = Math.max(callerDepth, depthOf(callee) + 1);
+        }
+        if (inline.isEmpty())
+            return 0;
+
+        Set<String> labels = new HashSet<String>();
+        for (SSAStatement s : body) {
+            if (s.getOp() == SSAStatement.Op.Label)
+                labels.add((String) s.getSpecial());
+        }
+
+        List<SSAStatement> newBody = new ArrayList<SSAStatement>(size);
+        Map<SSAStatement, SSAStatement> returned = new HashMap<SSAStatement, SSAStatement>();
+        Map<SSAStatement, SSAStatement> passed = new HashMap<SSAStatement, SSAStatement>();
+        int site = 0;
+        for (SSAStatement s : body) {
+            SSAMethod argFor = args.get(s);
+            if (argFor != null) {
+                int position = (Integer) s.getSpecial();
+                SSAStatement c = new SSAStatement(s.getASTNode(), SSAStatement.Op.VarAssg, s.getLeft(), null,
+                        argFor.getMethod().getParameters().get(position).getName());
+                c.setType(s.getType());
+                passed.put(s, c);
+                newBody.add(c);
+                continue;
+            }
+            SSAMethod callee = inline.get(s);
+            if (callee == null) {
+                newBody.add(s);
+                continue;
+            }
+
+            String suffix;
+            do {
+                suffix = "_inl" + (++site);
+            } while (!rename(callee, suffix, labels));
+            newBody.addAll(copy(s, callee, suffix, passed, returned));
+        }
+
+        for (SSAStatement s : newBody)
+            Optimizer.replaceOperands(s, returned);
+        caller.setBody(newBody);
+        depth.put(caller, callerDepth);
+        return inline.size();
+    }
+
+    // add the callee's labels with this suffix to those taken, if none of
+    // them are yet
+    private static boolean rename(SSAMethod callee, String suffix, Set<String> labels) {
+        List<String> renamed = new ArrayList<String>();
+        for (SSAStatement s : callee.getBody()) {
+            if (s.getOp() == SSAStatement.Op.Label) {
+                String label = s.getSpecial() + suffix;
+                if (labels.contains(label))
+                    return false;
+                renamed.add(label);
+            }
+        }
+        labels.addAll(renamed);
+        return true;
+    }
+
+    // a copy of the callee's body to replace this call, given what replaced
+    // its Args, with what replaces the call itself put in returned
+    private static List<SSAStatement> copy(SSAStatement call, SSAMethod callee, String suffix,
+            Map<SSAStatement, SSAStatement> passed, Map<SSAStatement, SSAStatement> returned) {
+        List<SSAStatement> args = ((SSACall) call.getSpecial()).getArgs();
+        List<SSAStatement> ret = new ArrayList<SSAStatement>(callee.getBody().size());
+
+        // first the copies, then what they use, as a loop's body can use a
+        // group by a statement after it
+        Map<SSAStatement, SSAStatement> copies = new HashMap<SSAStatement, SSAStatement>();
+        for (SSAStatement s : callee.getBody()) {
+            SSAStatement c;
+            switch (s.getOp()) {
+                case Parameter: {
+                    int position = (Integer) s.getSpecial();
+                    c = new SSAStatement(s.getASTNode(), SSAStatement.Op.VarAssg, passed.get(args.get(position)), null,
+                            callee.getMethod().getParameters().get(position).getName());
+                    break;
+                }
+                case This:
+                    c = new SSAStatement(s.getASTNode(), SSAStatement.Op.VarAssg, call.getLeft(), null, "this");
+                    break;
+                case Return:
+                    c = new SSAStatement(s.getASTNode(), SSAStatement.Op.VarAssg, null, null,
+                            callee.getMethod().getName());
+                    returned.put(call, c);
+                    break;
+                case Label:
+                case Goto:
+                case Branch:
+                case NBranch:
+                    c = new SSAStatement(s.getASTNode(), s.getOp(), null, null, s.getSpecial() + suffix);
+                    break;
+                case Call: {
+                    SSACall sc = (SSACall) s.getSpecial();
+                    c = new SSAStatement(s.getASTNode(), s.getOp(), null, null,
+                            new SSACall(sc.getMethod(), new ArrayList<SSAStatement>(sc.getArgs())));
+                    break;
+                }
+                default:
+                    c = new SSAStatement(s.getASTNode(), s.getOp(), null, null, s.getSpecial());
+            }
+            c.setType(s.getOp() == SSAStatement.Op.Return ? call.getType() : s.getType());
+            copies.put(s, c);
+            ret.add(c);
+        }
+
+        for (SSAStatement s : callee.getBody()) {
+            SSAStatement c = copies.get(s);
+            if (s.getOp() == SSAStatement.Op.Parameter || s.getOp() == SSAStatement.Op.This)
+                continue;
+            if (s.getLeft() != null)
+                c.setLeft(copied(copies, s.getLeft(), callee));
+            if (s.getRight() != null)
+                c.setRight(copied(copies, s.getRight(), callee));
+            if (s.getOp() == SSAStatement.Op.IndexAssg)
+                c.setSpecial(copied(copies, (SSAStatement) s.getSpecial(), callee));
+            if (s.getOp() == SSAStatement.Op.Call) {
+                List<SSAStatement> cargs = ((SSACall) c.getSpecial()).getArgs();
+                for (int i = 0; i < cargs.size(); i++)
+                    cargs.set(i, copied(copies, cargs.get(i), callee));
+            }
+        }
+        return ret;
+    }
+
+    private static SSAStatement copied(Map<SSAStatement, SSAStatement> copies, SSAStatement s, SSAMethod callee) {
+        SSAStatement ret = copies.get(s);
+        if (ret == null)
+            throw new Error("Statement " + s + " is used but not in the body of " + callee.getMethod().getName());
+        return ret;
+    }
+}
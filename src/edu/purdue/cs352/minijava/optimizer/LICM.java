@@ -0,0 +1,285 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+import edu.purdue.cs352.minijava.types.*;
+
+/* Loop-invariant code motion: a pure statement in a loop which computes the
+ * same thing every time around, since nothing it reads is written in the
+ * loop, is moved to a preheader just before the loop's header label (out of
+ * as many loops as it can be).
+ *
+ * Loads are invariant only if nothing in the loop can store to what they
+ * load: no MemberAssg of the same field or IndexAssg respectively, and no
+ * Call at all. An array's length never changes. What could fault (a load
+ * through anything but this, Div, Mod) is only moved if it was going to run
+ * whenever the loop is entered anyway, that is, if its block dominates every
+ * way out of the loop. Constants and This are moved along with what uses
+ * them. */
+class LICM {
+    // what a loop writes, and where hoisting out of it goes
+    private static class LoopInfo {
+        boolean[] inLoop;
+        Set<Integer> groups = new HashSet<Integer>();
+        Set<Object> fields = new HashSet<Object>();
+        boolean arrays, calls;
+
+        // the blocks with a successor outside the loop
+        List<ControlFlowGraph.Block> exits = new ArrayList<ControlFlowGraph.Block>();
+
+        // whether there's a single way in, straight before the header label
+        boolean preheader;
+    }
+
+    private final List<SSAStatement> body;
+    private final ControlFlowGraph cfg;
+    private final Groups groups;
+    private final Map<ControlFlowGraph.Loop, LoopInfo> info = new HashMap<ControlFlowGraph.Loop, LoopInfo>();
+
+    // the loop each statement is hoisted out of, if any
+    private final ControlFlowGraph.Loop[] target;
+
+    private LICM(SSAMethod m) {
+        body = m.getBody();
+        cfg = m.getCFG();
+        groups = new Groups(body);
+        target = new ControlFlowGraph.Loop[body.size()];
+    }
+
+    static void run(SSAMethod m, Optimizer.Stats stats) {
+        if (m.getBody().isEmpty() || m.getCFG().getLoops().isEmpty())
+            return;
+        LICM licm = new LICM(m);
+        Deque<ControlFlowGraph.Loop> work = new ArrayDeque<ControlFlowGraph.Loop>(m.getCFG().getLoops());
+        while (!work.isEmpty()) {
+            ControlFlowGraph.Loop loop = work.pop();
+            licm.info.put(loop, licm.describe(loop));
+            work.addAll(loop.getChildren());
+        }
+        licm.choose();
+        licm.rewrite(m, stats);
+    }
+
+    private LoopInfo describe(ControlFlowGraph.Loop loop) {
+        LoopInfo li = new LoopInfo();
+        li.inLoop = new boolean[cfg.getBlocks().size()];
+        for (ControlFlowGraph.Block b : loop.getBlocks())
+            li.inLoop[b.getIndex()] = true;
+
+        for (ControlFlowGraph.Block b : loop.getBlocks()) {
+            for (int i = b.getStart(); i < b.getEnd(); i++) {
+                SSAStatement s = body.get(i);
+                switch (s.getOp()) {
+                    case Unify:
+                    case Alias:
+                        continue;
+                    case MemberAssg:
+                        li.fields.add(s.getSpecial());
+                        break;
+                    case IndexAssg:
+                        li.arrays = true;
+                        break;
+                    case Call:
+                        li.calls = true;
+                        break;
+                    default:
+                }
+                li.groups.add(groups.find(i));
+            }
+            for (int si : b.getSuccs()) {
+                if (!li.inLoop[si]) {
+                    li.exits.add(b);
+                    break;
+                }
+            }
+        }
+
+        // the way in has to fall through to the header label, or what's put
+        // before it would be jumped over
+        ControlFlowGraph.Block header = loop.getHeader();
+        SSAStatement label = body.get(header.getStart());
+        int ways = 0;
+        boolean fallsThrough = true;
+        for (int pi : header.getPreds()) {
+            ControlFlowGraph.Block p = cfg.getBlock(pi);
+            if (li.inLoop[pi] || !p.isReachable())
+                continue;
+            ways++;
+            SSAStatement last = body.get(p.getEnd() - 1);
+            if (pi != header.getIndex() - 1 || jumpsTo(last, label))
+                fallsThrough = false;
+        }
+        li.preheader = label.getOp() == SSAStatement.Op.Label && fallsThrough
+                && (ways == 1 || (ways == 0 && header == cfg.getEntry()));
+        return li;
+    }
+
+    private static boolean jumpsTo(SSAStatement s, SSAStatement label) {
+        switch (s.getOp()) {
+            case Goto:
+            case Branch:
+            case NBranch:
+                return s.getSpecial().equals(label.getSpecial());
+            default:
+                return false;
+        }
+    }
+
+    // decide what moves where, in body order so that what a statement uses
+    // has been decided first
+    private void choose() {
+        for (ControlFlowGraph.Block b : cfg.getBlocks()) {
+            if (b.getLoop() == null)
+                continue;
+
+            // outermost first, to move everything as far out as it goes
+            List<ControlFlowGraph.Loop> loops = new ArrayList<ControlFlowGraph.Loop>();
+            for (ControlFlowGraph.Loop l = b.getLoop(); l != null; l = l.getParent())
+                loops.add(0, l);
+
+            for (int i = b.getStart(); i < b.getEnd(); i++) {
+                SSAStatement s = body.get(i);
+                if (!movable(s.getOp()) || !groups.alone(s))
+                    continue;
+                for (ControlFlowGraph.Loop loop : loops) {
+                    if (info.get(loop).preheader && invariant(s, loop) && safe(s, b, loop)) {
+                        target[i] = loop;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // then the constants the moved statements use go with them, out of
+        // the outermost loop any of them is moved out of
+        for (int i = 0; i < body.size(); i++) {
+            if (target[i] == null || constant(body.get(i).getOp()))
+                continue;
+            for (SSAStatement used : Optimizer.operands(body.get(i))) {
+                int ui = groups.index(used);
+                if (!constant(used.getOp()) || !groups.alone(used))
+                    continue;
+                if (!info.get(target[i]).inLoop[cfg.blockOf(ui).getIndex()])
+                    continue;
+                if (target[ui] == null || encloses(target[i], target[ui]))
+                    target[ui] = target[i];
+            }
+        }
+    }
+
+    private static boolean movable(SSAStatement.Op op) {
+        switch (op) {
+            case VarAssg:
+            case Member:
+            case Index:
+            case Not:
+            case Lt: case Le: case Eq: case Ne: case Gt: case Ge:
+            case And: case Or:
+            case Plus: case Minus:
+            case Mul: case Div: case Mod:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean constant(SSAStatement.Op op) {
+        switch (op) {
+            case Int:
+            case Boolean:
+            case Null:
+            case This:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // is outer the same loop as inner or around it?
+    private static boolean encloses(ControlFlowGraph.Loop outer, ControlFlowGraph.Loop inner) {
+        for (ControlFlowGraph.Loop l = inner; l != null; l = l.getParent()) {
+            if (l == outer)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean invariant(SSAStatement s, ControlFlowGraph.Loop loop) {
+        LoopInfo li = info.get(loop);
+        for (SSAStatement used : Optimizer.operands(s)) {
+            int ui = groups.index(used);
+            if (constant(used.getOp()) && groups.alone(used))
+                continue;
+            if (target[ui] != null && encloses(target[ui], loop))
+                continue;
+            if (li.groups.contains(groups.find(ui)))
+                return false;
+        }
+
+        switch (s.getOp()) {
+            case Member:
+                if (s.getSpecial().equals("length") && isIntArray(s.getLeft().getType()))
+                    return true;
+                return !li.calls && !li.fields.contains(s.getSpecial());
+            case Index:
+                return !li.calls && !li.arrays;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isIntArray(StaticType type) {
+        return type instanceof ObjectType && ((ObjectType) type).getName().equals("int[]");
+    }
+
+    // can s run even if it wasn't going to?
+    private boolean safe(SSAStatement s, ControlFlowGraph.Block b, ControlFlowGraph.Loop loop) {
+        switch (s.getOp()) {
+            case Member:
+                if (s.getLeft().getOp() == SSAStatement.Op.This)
+                    return true;
+                break;
+            case Index:
+            case Div:
+            case Mod:
+                break;
+            default:
+                return true;
+        }
+        for (ControlFlowGraph.Block exit : info.get(loop).exits) {
+            if (!cfg.dominates(b, exit))
+                return false;
+        }
+        return true;
+    }
+
+    private void rewrite(SSAMethod m, Optimizer.Stats stats) {
+        Map<ControlFlowGraph.Loop, List<SSAStatement>> hoisted = new HashMap<ControlFlowGraph.Loop, List<SSAStatement>>();
+        for (int i = 0; i < body.size(); i++) {
+            if (target[i] == null)
+                continue;
+            if (!hoisted.containsKey(target[i]))
+                hoisted.put(target[i], new ArrayList<SSAStatement>());
+            hoisted.get(target[i]).add(body.get(i));
+            stats.hoisted++;
+        }
+        if (hoisted.isEmpty())
+            return;
+
+        // preheaders go right before their header label; an outer loop's
+        // comes before an inner one's as its header is earlier
+        Map<Integer, List<SSAStatement>> before = new HashMap<Integer, List<SSAStatement>>();
+        for (Map.Entry<ControlFlowGraph.Loop, List<SSAStatement>> e : hoisted.entrySet())
+            before.put(e.getKey().getHeader().getStart(), e.getValue());
+
+        List<SSAStatement> newBody = new ArrayList<SSAStatement>(body.size());
+        for (int i = 0; i < body.size(); i++) {
+            if (before.containsKey(i))
+                newBody.addAll(before.get(i));
+            if (target[i] == null)
+                newBody.add(body.get(i));
+        }
+        m.setBody(newBody);
+    }
+}
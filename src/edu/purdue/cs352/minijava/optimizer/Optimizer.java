@@ -0,0 +1,171 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* Optimization passes over the SSA of each method, run after type checking
+ * and before a backend. Unified statements share storage (every write to
+ * one is a write to all of them), so the passes treat each group of unified
+ * statements as one variable rather than as separate values. */
+public class Optimizer {
+    // what optimizing one method did
+    public static class Stats {
+        public String method;
+        public int before, after; // statements in the body
+        public long nanos;
+
+        // inlining: calls replaced by a copy of the method called
+        public int inlined;
+
+        // constant propagation: statements folded to constants, branches on
+        // constants resolved, and statements which could never run
+        public int folded, branches, unreachable;
+
+        // value numbering: statements which only redid what a dominating
+        // statement already computed
+        public int redundant;
+
+        // loop-invariant code motion: statements moved out of loops
+        public int hoisted;
+
+        // dead code elimination: statements nothing needed
+        public int dead;
+
+        private Stats(String method) {
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d -> %d statements, %d inlined, %d folded, %d branches resolved, %d unreachable, %d redundant, %d hoisted, %d dead, %.3f ms",
+                    method, before, after, inlined, folded, branches, unreachable, redundant, hoisted, dead, nanos / 1e6);
+        }
+    }
+
+    // optimize every method of this program
+    public static List<Stats> optimize(SSAProgram prog) {
+        return optimize(prog, null);
+    }
+
+    // optimize every method of this program, each as a separate task if
+    // there's a pool. Inlining copies other methods, so it's done first, for
+    // every method in turn
+    public static List<Stats> optimize(SSAProgram prog, ForkJoinPool pool) {
+        List<SSAMethod> methods = new ArrayList<SSAMethod>();
+        List<String> names = new ArrayList<String>();
+        methods.add(prog.getMain());
+        names.add("main");
+        for (SSAClass cl : prog.getClassesOrdered()) {
+            for (SSAMethod m : cl.getMethodsOrdered()) {
+                methods.add(m);
+                names.add(cl.getASTNode().getName() + "." + m.getMethod().getName());
+            }
+        }
+
+        int[] before = new int[methods.size()];
+        for (int i = 0; i < before.length; i++)
+            before[i] = methods.get(i).getBody().size();
+        int[] inlined = Inliner.run(prog, methods);
+
+        List<Stats> stats;
+        if (pool == null) {
+            stats = new ArrayList<Stats>();
+            for (SSAMethod m : methods)
+                stats.add(optimize(m));
+
+        } else {
+            List<Callable<Stats>> tasks = new ArrayList<Callable<Stats>>();
+            for (final SSAMethod m : methods) {
+                tasks.add(new Callable<Stats>() {
+                    public Stats call() {
+                        return optimize(m);
+                    }
+                });
+            }
+            stats = ParallelMethods.run(pool, tasks);
+        }
+
+        for (int i = 0; i < stats.size(); i++) {
+            Stats st = stats.get(i);
+            st.method = names.get(i);
+            st.before = before[i];
+            st.inlined = inlined[i];
+        }
+        return stats;
+    }
+
+    // optimize this method
+    public static Stats optimize(SSAMethod m) {
+        long startTime = System.nanoTime();
+        Stats stats = new Stats(m.getMethod() == null ? "main" : m.getMethod().getName());
+        stats.before = m.getBody().size();
+
+        // the type checker is done with the old values VarAssgs point to,
+        // and they aren't uses
+        for (SSAStatement s : m.getBody()) {
+            if (s.getOp() == SSAStatement.Op.VarAssg)
+                s.setRight(null);
+        }
+
+        SCCP.run(m, stats);
+        GVN.run(m, stats);
+        LICM.run(m, stats);
+        DCE.run(m, stats);
+
+        check(m);
+        stats.after = m.getBody().size();
+        stats.nanos = System.nanoTime() - startTime;
+        return stats;
+    }
+
+    // the statements this one uses: its left and right, the Args of a Call
+    // and the index of an IndexAssg
+    static List<SSAStatement> operands(SSAStatement s) {
+        List<SSAStatement> ret = new ArrayList<SSAStatement>(2);
+        switch (s.getOp()) {
+            case Call:
+                ret.addAll(((SSACall) s.getSpecial()).getArgs());
+                break;
+            case IndexAssg:
+                ret.add((SSAStatement) s.getSpecial());
+                break;
+            default:
+        }
+        if (s.getLeft() != null)
+            ret.add(s.getLeft());
+        if (s.getRight() != null)
+            ret.add(s.getRight());
+        return ret;
+    }
+
+    // make s use with.get(x) wherever it used x
+    static void replaceOperands(SSAStatement s, Map<SSAStatement, SSAStatement> with) {
+        SSAStatement to;
+        if (s.getLeft() != null && (to = with.get(s.getLeft())) != null)
+            s.setLeft(to);
+        if (s.getRight() != null && (to = with.get(s.getRight())) != null)
+            s.setRight(to);
+        if (s.getOp() == SSAStatement.Op.IndexAssg && (to = with.get(s.getSpecial())) != null)
+            s.setSpecial(to);
+        if (s.getOp() == SSAStatement.Op.Call) {
+            List<SSAStatement> args = ((SSACall) s.getSpecial()).getArgs();
+            for (int i = 0; i < args.size(); i++) {
+                if ((to = with.get(args.get(i))) != null)
+                    args.set(i, to);
+            }
+        }
+    }
+
+    // every statement the body uses must still be in it
+    private static void check(SSAMethod m) {
+        Set<SSAStatement> inBody = new HashSet<SSAStatement>(m.getBody());
+        for (SSAStatement s : m.getBody()) {
+            for (SSAStatement used : operands(s)) {
+                if (!inBody.contains(used))
+                    throw new Error("Optimized statement " + s + " uses " + used + ", which is gone");
+            }
+        }
+    }
+}
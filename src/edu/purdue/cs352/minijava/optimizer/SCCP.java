@@ -0,0 +1,347 @@
+package edu.purdue.cs352.minijava.optimizer;
+
+import java.util.*;
+
+import edu.purdue.cs352.minijava.ast.*;
+import edu.purdue.cs352.minijava.ssa.*;
+
+/* Sparse conditional constant propagation (Wegman and Zadeck): values only
+ * flow out of blocks which can run, and only along the edges a branch can
+ * take with what's known of its condition. A group of unified statements is
+ * constant if every statement writing it (that can run) writes the same
+ * constant.
+ *
+ * Then statements with a constant value are replaced by Ints and Booleans,
+ * branches on constants by Gotos (or nothing), and blocks which can't run
+ * are deleted. What the folded statements used is left for DCE. */
+class SCCP {
+    // the lattice: TOP (nothing known yet), an Integer or Boolean, or BOTTOM
+    private static final Object TOP = new Object(), BOTTOM = new Object();
+
+    private final SSAMethod method;
+    private final List<SSAStatement> body;
+    private final ControlFlowGraph cfg;
+
+    // the groups of unified statements, and the value of each (at its root)
+    private final Groups groups;
+    private final Object[] value;
+
+    // the statements using a member of each group, at its root
+    private final List<List<Integer>> users;
+
+    private final boolean[] executable;
+    private final Deque<ControlFlowGraph.Block> blockWork = new ArrayDeque<ControlFlowGraph.Block>();
+    private final Deque<Integer> statementWork = new ArrayDeque<Integer>();
+
+    private SCCP(SSAMethod method) {
+        this.method = method;
+        body = method.getBody();
+        cfg = method.getCFG();
+        int n = body.size();
+        groups = new Groups(body);
+
+        value = new Object[n];
+        Arrays.fill(value, TOP);
+        users = new ArrayList<List<Integer>>(n);
+        for (int i = 0; i < n; i++)
+            users.add(null);
+        for (int i = 0; i < n; i++) {
+            for (SSAStatement used : Optimizer.operands(body.get(i))) {
+                int g = groups.of(used);
+                if (users.get(g) == null)
+                    users.set(g, new ArrayList<Integer>());
+                users.get(g).add(i);
+            }
+        }
+
+        executable = new boolean[cfg.getBlocks().size()];
+    }
+
+    static void run(SSAMethod m, Optimizer.Stats stats) {
+        if (m.getBody().isEmpty())
+            return;
+        SCCP sccp = new SCCP(m);
+        sccp.propagate();
+        sccp.rewrite(stats);
+    }
+
+    private Object valueOf(SSAStatement s) {
+        return value[groups.of(s)];
+    }
+
+    private void propagate() {
+        markExecutable(cfg.getEntry());
+        while (!blockWork.isEmpty() || !statementWork.isEmpty()) {
+            while (!blockWork.isEmpty()) {
+                ControlFlowGraph.Block b = blockWork.pop();
+                for (int i = b.getStart(); i < b.getEnd(); i++)
+                    visit(i);
+
+                // the successors of anything but a branch are simply reached
+                SSAStatement.Op last = body.get(b.getEnd() - 1).getOp();
+                if (last != SSAStatement.Op.Branch && last != SSAStatement.Op.NBranch) {
+                    for (int si : b.getSuccs())
+                        markExecutable(cfg.getBlock(si));
+                }
+            }
+            while (!statementWork.isEmpty() && blockWork.isEmpty()) {
+                int i = statementWork.pop();
+                if (executable[cfg.blockOf(i).getIndex()])
+                    visit(i);
+            }
+        }
+    }
+
+    private void markExecutable(ControlFlowGraph.Block b) {
+        if (!executable[b.getIndex()]) {
+            executable[b.getIndex()] = true;
+            blockWork.push(b);
+        }
+    }
+
+    private void visit(int i) {
+        SSAStatement s = body.get(i);
+        switch (s.getOp()) {
+            case Branch:
+            case NBranch: {
+                Object cond = valueOf(s.getLeft());
+                if (cond == TOP)
+                    return;
+                boolean known = cond instanceof Boolean;
+                if (!known || taken(s, cond))
+                    markExecutable(cfg.blockOf(cfg.jumpTarget(i)));
+                int next = cfg.blockOf(i).getIndex() + 1;
+                if ((!known || !taken(s, cond)) && next < executable.length)
+                    markExecutable(cfg.getBlock(next));
+                return;
+            }
+
+            // these write nothing of their own
+            case Unify:
+            case Alias:
+            case Label:
+            case Goto:
+            case Return:
+            case Print:
+            case Store:
+                return;
+
+            default:
+        }
+
+        int g = groups.find(i);
+        Object v = meet(value[g], evaluate(s));
+        if (!same(v, value[g])) {
+            value[g] = v;
+            if (users.get(g) != null)
+                statementWork.addAll(users.get(g));
+        }
+    }
+
+    // does this Branch or NBranch jump, on this constant?
+    private static boolean taken(SSAStatement s, Object cond) {
+        return ((Boolean) cond).booleanValue() == (s.getOp() == SSAStatement.Op.Branch);
+    }
+
+    private static boolean same(Object a, Object b) {
+        return a == b || a.equals(b);
+    }
+
+    private static Object meet(Object a, Object b) {
+        if (a == TOP)
+            return b;
+        if (b == TOP)
+            return a;
+        if (a == BOTTOM || b == BOTTOM || !a.equals(b))
+            return BOTTOM;
+        return a;
+    }
+
+    // the value s computes from what's known of its operands
+    private Object evaluate(SSAStatement s) {
+        switch (s.getOp()) {
+            case Int:
+            case Boolean:
+                return s.getSpecial();
+
+            case Null: {
+                Type type = (Type) s.getSpecial();
+                if (type instanceof TypeInt)
+                    return Integer.valueOf(0);
+                if (type instanceof TypeBoolean)
+                    return Boolean.FALSE;
+                return BOTTOM;
+            }
+
+            case VarAssg:
+            case Arg:
+                return valueOf(s.getLeft());
+
+            case Not: {
+                Object v = valueOf(s.getLeft());
+                if (v instanceof Boolean)
+                    return Boolean.valueOf(!((Boolean) v).booleanValue());
+                return v == TOP ? TOP : BOTTOM;
+            }
+
+            case Lt: case Le: case Eq: case Ne: case Gt: case Ge:
+            case And: case Or:
+            case Plus: case Minus:
+            case Mul: case Div: case Mod:
+                return evaluate(s.getOp(), valueOf(s.getLeft()), valueOf(s.getRight()));
+
+            default:
+                return BOTTOM;
+        }
+    }
+
+    private static Object evaluate(SSAStatement.Op op, Object a, Object b) {
+        // some operands decide the result whatever the other one is
+        switch (op) {
+            case And:
+                if (Boolean.FALSE.equals(a) || Boolean.FALSE.equals(b))
+                    return Boolean.FALSE;
+                break;
+            case Or:
+                if (Boolean.TRUE.equals(a) || Boolean.TRUE.equals(b))
+                    return Boolean.TRUE;
+                break;
+            case Mul:
+                if (Integer.valueOf(0).equals(a) || Integer.valueOf(0).equals(b))
+                    return Integer.valueOf(0);
+                break;
+            default:
+        }
+
+        if (a == BOTTOM || b == BOTTOM)
+            return BOTTOM;
+        if (a == TOP || b == TOP)
+            return TOP;
+
+        switch (op) {
+            case Eq:
+                return Boolean.valueOf(a.equals(b));
+            case Ne:
+                return Boolean.valueOf(!a.equals(b));
+            case And:
+            case Or:
+                if (!(a instanceof Boolean && b instanceof Boolean))
+                    return BOTTOM;
+                return op == SSAStatement.Op.And ? Boolean.valueOf((Boolean) a && (Boolean) b)
+                        : Boolean.valueOf((Boolean) a || (Boolean) b);
+            default:
+        }
+
+        if (!(a instanceof Integer && b instanceof Integer))
+            return BOTTOM;
+        int x = ((Integer) a).intValue(), y = ((Integer) b).intValue();
+        switch (op) {
+            case Lt: return Boolean.valueOf(x < y);
+            case Le: return Boolean.valueOf(x <= y);
+            case Gt: return Boolean.valueOf(x > y);
+            case Ge: return Boolean.valueOf(x >= y);
+            case Plus: return Integer.valueOf(x + y);
+            case Minus: return Integer.valueOf(x - y);
+            case Mul: return Integer.valueOf(x * y);
+
+            // dividing by zero is left to happen when it runs
+            case Div: return y == 0 ? BOTTOM : Integer.valueOf(x / y);
+            case Mod: return y == 0 ? BOTTOM : Integer.valueOf(x % y);
+            default: return BOTTOM;
+        }
+    }
+
+    private static boolean foldable(SSAStatement.Op op) {
+        switch (op) {
+            case VarAssg:
+            case Not:
+            case Lt: case Le: case Eq: case Ne: case Gt: case Ge:
+            case And: case Or:
+            case Plus: case Minus:
+            case Mul: case Div: case Mod:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void rewrite(Optimizer.Stats stats) {
+        List<SSAStatement> newBody = new ArrayList<SSAStatement>();
+        Set<SSAStatement> removed = new HashSet<SSAStatement>();
+        Map<SSAStatement, SSAStatement> folded = new HashMap<SSAStatement, SSAStatement>();
+
+        for (ControlFlowGraph.Block b : cfg.getBlocks()) {
+            if (!executable[b.getIndex()]) {
+                for (int i = b.getStart(); i < b.getEnd(); i++)
+                    removed.add(body.get(i));
+                stats.unreachable += b.getEnd() - b.getStart();
+                continue;
+            }
+
+            for (int i = b.getStart(); i < b.getEnd(); i++) {
+                SSAStatement s = body.get(i);
+                SSAStatement.Op op = s.getOp();
+
+                if (op == SSAStatement.Op.Branch || op == SSAStatement.Op.NBranch) {
+                    Object cond = valueOf(s.getLeft());
+                    if (cond instanceof Boolean) {
+                        removed.add(s);
+                        if (taken(s, cond))
+                            newBody.add(new SSAStatement(s.getASTNode(), SSAStatement.Op.Goto, s.getSpecial()));
+                        stats.branches++;
+                        continue;
+                    }
+
+                } else if (foldable(op)) {
+                    Object v = value[groups.find(i)];
+                    if (v instanceof Integer || v instanceof Boolean) {
+                        SSAStatement c = new SSAStatement(s.getASTNode(),
+                                v instanceof Integer ? SSAStatement.Op.Int : SSAStatement.Op.Boolean, v);
+                        c.setType(s.getType());
+                        removed.add(s);
+                        folded.put(s, c);
+                        newBody.add(c);
+                        stats.folded++;
+                        continue;
+                    }
+                }
+
+                newBody.add(s);
+            }
+        }
+
+        for (SSAStatement s : newBody)
+            Optimizer.replaceOperands(s, folded);
+
+        // a Unify after a branch which can't be taken only unifies what's
+        // left
+        for (SSAStatement s : newBody) {
+            if (s.getOp() != SSAStatement.Op.Unify)
+                continue;
+            boolean leftGone = removed.contains(s.getLeft()), rightGone = removed.contains(s.getRight());
+            if (leftGone && rightGone)
+                throw new Error("Both sides of " + s + " can't run");
+            if (leftGone)
+                s.setLeft(s.getRight());
+            else if (rightGone)
+                s.setRight(s.getLeft());
+        }
+
+        method.setBody(dropJumpsToNext(newBody));
+    }
+
+    // drop Gotos to the very next statement, as resolving branches leaves
+    private static List<SSAStatement> dropJumpsToNext(List<SSAStatement> body) {
+        List<SSAStatement> ret = new ArrayList<SSAStatement>();
+        for (int i = 0; i < body.size(); i++) {
+            SSAStatement s = body.get(i);
+            if (s.getOp() == SSAStatement.Op.Goto && i + 1 < body.size()) {
+                SSAStatement next = body.get(i + 1);
+                if (next.getOp() == SSAStatement.Op.Label && next.getSpecial().equals(s.getSpecial()))
+                    continue;
+            }
+            ret.add(s);
+        }
+        return ret;
+    }
+}
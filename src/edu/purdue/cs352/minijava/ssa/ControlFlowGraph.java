@@ -0,0 +1,348 @@
+package edu.purdue.cs352.minijava.ssa;
+
+import java.util.*;
+
+/* The control flow graph of a method body, as basic blocks of consecutive
+ * statements. A block starts at each Label and after each Goto, Branch and
+ * NBranch, and its successors are those of its last statement: the label it
+ * jumps to, and the next block unless it ends in a Goto.
+ *
+ * Built from the body by SSAMethod.getCFG, so it's only valid until the
+ * body changes (SSAMethod.setBody drops it). */
+public class ControlFlowGraph {
+    public static class Block {
+        final int index;
+
+        // the statements of the block are body[start..end)
+        final int start, end;
+
+        int[] preds, succs;
+
+        // position in reverse post-order, or -1 if unreachable from the entry
+        int rpo = -1;
+
+        // immediate dominator (null for the entry and unreachable blocks),
+        // and the blocks it immediately dominates
+        Block idom;
+        final List<Block> domChildren = new ArrayList<Block>();
+
+        // the innermost loop containing this block, if any
+        Loop loop;
+
+        Block(int index, int start, int end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getIndex() { return index; }
+        public int getStart() { return start; }
+        public int getEnd() { return end; }
+        public int[] getPreds() { return preds; }
+        public int[] getSuccs() { return succs; }
+        public boolean isReachable() { return rpo >= 0; }
+        public Block getIdom() { return idom; }
+        public List<Block> getDomChildren() { return domChildren; }
+        public Loop getLoop() { return loop; }
+        public int getLoopDepth() { return loop == null ? 0 : loop.depth; }
+
+        public String toString() { return "B" + index; }
+    }
+
+    /* A natural loop: the header and every block which can reach one of the
+     * header's back edges without going through the header. */
+    public static class Loop {
+        final Block header;
+        final List<Block> blocks = new ArrayList<Block>();
+        Loop parent;
+        final List<Loop> children = new ArrayList<Loop>();
+
+        // 1 for outermost loops
+        int depth;
+
+        Loop(Block header) {
+            this.header = header;
+        }
+
+        public Block getHeader() { return header; }
+        public List<Block> getBlocks() { return blocks; }
+        public Loop getParent() { return parent; }
+        public List<Loop> getChildren() { return children; }
+        public int getDepth() { return depth; }
+    }
+
+    final List<SSAStatement> body;
+    final List<Block> blocks = new ArrayList<Block>();
+
+    // the block of each statement, and the body index of each label
+    final int[] blockOf;
+    final Map<String, Integer> labels = new HashMap<String, Integer>();
+
+    // the reachable blocks in reverse post-order
+    final List<Block> rpo = new ArrayList<Block>();
+
+    // the outermost loops
+    final List<Loop> loops = new ArrayList<Loop>();
+
+    public ControlFlowGraph(List<SSAStatement> body) {
+        this.body = body;
+        blockOf = new int[body.size()];
+
+        findBlocks();
+        findEdges();
+        orderBlocks();
+        findDominators();
+        findLoops();
+    }
+
+    public List<SSAStatement> getBody() { return body; }
+    public List<Block> getBlocks() { return blocks; }
+    public Block getBlock(int index) { return blocks.get(index); }
+    public Block getEntry() { return blocks.isEmpty() ? null : blocks.get(0); }
+    public List<Block> getReversePostOrder() { return rpo; }
+    public List<Loop> getLoops() { return loops; }
+
+    // the block containing the statement at this body index
+    public Block blockOf(int stmt) {
+        return blocks.get(blockOf[stmt]);
+    }
+
+    // the body index of this label
+    public int labelIndex(String label) {
+        Integer ret = labels.get(label);
+        if (ret == null)
+            throw new Error("Unknown label " + label);
+        return ret.intValue();
+    }
+
+    // the body index of the label that the Goto, Branch or NBranch at this
+    // body index jumps to
+    public int jumpTarget(int stmt) {
+        return labelIndex((String) body.get(stmt).getSpecial());
+    }
+
+    // does a dominate b? (every block dominates itself)
+    public boolean dominates(Block a, Block b) {
+        if (!a.isReachable() || !b.isReachable())
+            return false;
+        while (b != null && b.rpo > a.rpo)
+            b = b.idom;
+        return b == a;
+    }
+
+    private static boolean isJump(SSAStatement.Op op) {
+        return op == SSAStatement.Op.Goto || op == SSAStatement.Op.Branch
+            || op == SSAStatement.Op.NBranch;
+    }
+
+    private void findBlocks() {
+        int start = 0;
+        for (int i = 0; i < body.size(); i++) {
+            SSAStatement s = body.get(i);
+            if (s.getOp() == SSAStatement.Op.Label) {
+                labels.put((String) s.getSpecial(), Integer.valueOf(i));
+                if (i > start) {
+                    addBlock(start, i);
+                    start = i;
+                }
+            }
+            if (isJump(s.getOp())) {
+                addBlock(start, i + 1);
+                start = i + 1;
+            }
+        }
+        if (start < body.size())
+            addBlock(start, body.size());
+    }
+
+    private void addBlock(int start, int end) {
+        Block b = new Block(blocks.size(), start, end);
+        for (int i = start; i < end; i++)
+            blockOf[i] = b.index;
+        blocks.add(b);
+    }
+
+    private void findEdges() {
+        List<List<Integer>> preds = new ArrayList<List<Integer>>();
+        for (int bi = 0; bi < blocks.size(); bi++)
+            preds.add(new ArrayList<Integer>());
+
+        for (Block b : blocks) {
+            SSAStatement last = body.get(b.end - 1);
+            int target = -1, next = -1;
+            if (isJump(last.getOp()))
+                target = blockOf[jumpTarget(b.end - 1)];
+            if (last.getOp() != SSAStatement.Op.Goto && b.index + 1 < blocks.size())
+                next = b.index + 1;
+
+            if (target >= 0 && next >= 0 && target != next)
+                b.succs = new int[] {target, next};
+            else if (target >= 0)
+                b.succs = new int[] {target};
+            else if (next >= 0)
+                b.succs = new int[] {next};
+            else
+                b.succs = new int[0];
+
+            for (int si : b.succs)
+                preds.get(si).add(Integer.valueOf(b.index));
+        }
+
+        for (Block b : blocks) {
+            List<Integer> p = preds.get(b.index);
+            b.preds = new int[p.size()];
+            for (int i = 0; i < b.preds.length; i++)
+                b.preds[i] = p.get(i).intValue();
+        }
+    }
+
+    // depth-first from the entry, without recursion since bodies can be long
+    private void orderBlocks() {
+        int n = blocks.size();
+        if (n == 0)
+            return;
+
+        Block[] post = new Block[n];
+        int count = 0;
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n], next = new int[n];
+        int sp = 0;
+        stack[sp++] = 0;
+        visited[0] = true;
+        while (sp > 0) {
+            Block b = blocks.get(stack[sp - 1]);
+            if (next[b.index] < b.succs.length) {
+                int si = b.succs[next[b.index]++];
+                if (!visited[si]) {
+                    visited[si] = true;
+                    stack[sp++] = si;
+                }
+            } else {
+                post[count++] = b;
+                sp--;
+            }
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            post[i].rpo = rpo.size();
+            rpo.add(post[i]);
+        }
+    }
+
+    // Cooper, Harvey and Kennedy's iterative algorithm over reverse post-order
+    private void findDominators() {
+        if (rpo.isEmpty())
+            return;
+
+        Block entry = rpo.get(0);
+        entry.idom = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < rpo.size(); i++) {
+                Block b = rpo.get(i);
+                Block idom = null;
+                for (int pi : b.preds) {
+                    Block p = blocks.get(pi);
+                    if (p.idom == null)
+                        continue;
+                    idom = (idom == null) ? p : intersect(p, idom);
+                }
+                if (idom != b.idom) {
+                    b.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+        entry.idom = null;
+
+        for (Block b : rpo) {
+            if (b.idom != null)
+                b.idom.domChildren.add(b);
+        }
+    }
+
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.rpo > b.rpo)
+                a = a.idom;
+            while (b.rpo > a.rpo)
+                b = b.idom;
+        }
+        return a;
+    }
+
+    private void findLoops() {
+        // one loop per header, with every block that reaches a back edge
+        List<Loop> all = new ArrayList<Loop>();
+        for (Block h : rpo) {
+            Loop loop = null;
+            boolean[] inLoop = null;
+            Deque<Block> work = new ArrayDeque<Block>();
+            for (int pi : h.preds) {
+                Block p = blocks.get(pi);
+                if (!dominates(h, p))
+                    continue;
+                if (loop == null) {
+                    loop = new Loop(h);
+                    inLoop = new boolean[blocks.size()];
+                    inLoop[h.index] = true;
+                }
+                if (!inLoop[p.index]) {
+                    inLoop[p.index] = true;
+                    work.push(p);
+                }
+            }
+            if (loop == null)
+                continue;
+
+            while (!work.isEmpty()) {
+                Block b = work.pop();
+                for (int pi : b.preds) {
+                    Block p = blocks.get(pi);
+                    if (p.isReachable() && !inLoop[p.index]) {
+                        inLoop[p.index] = true;
+                        work.push(p);
+                    }
+                }
+            }
+            for (Block b : rpo) {
+                if (inLoop[b.index])
+                    loop.blocks.add(b);
+            }
+            all.add(loop);
+        }
+
+        // headers come in reverse post-order, so each loop's enclosing loops
+        // were found before it: the innermost block assignment wins
+        for (Loop loop : all) {
+            Loop parent = loop.header.loop;
+            loop.parent = parent;
+            loop.depth = (parent == null) ? 1 : parent.depth + 1;
+            if (parent == null)
+                loops.add(loop);
+            else
+                parent.children.add(loop);
+            for (Block b : loop.blocks)
+                b.loop = loop;
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Block b : blocks) {
+            sb.append(b).append(" [").append(b.start).append(", ").append(b.end).append(")");
+            sb.append(" succs:");
+            for (int si : b.succs)
+                sb.append(" B").append(si);
+            if (b.idom != null)
+                sb.append(" idom: ").append(b.idom);
+            if (b.loop != null)
+                sb.append(" loop: ").append(b.loop.header).append(" depth ").append(b.loop.depth);
+            if (!b.isReachable())
+                sb.append(" unreachable");
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
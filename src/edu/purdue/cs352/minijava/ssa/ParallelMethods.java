@@ -0,0 +1,27 @@
+package edu.purdue.cs352.minijava.ssa;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Runs one task per method in a pool. Methods are compiled independently of
+ * each other, so the only thing the compiler passes need from this is the
+ * results back in the order the tasks were given. */
+public class ParallelMethods {
+    public static <T> List<T> run(ForkJoinPool pool, List<Callable<T>> tasks) {
+        List<T> ret = new ArrayList<T>();
+        for (Future<T> f : pool.invokeAll(tasks)) {
+            try {
+                ret.add(f.get());
+            } catch (InterruptedException ex) {
+                throw new Error(ex);
+            } catch (ExecutionException ex) {
+                // rethrow the compiler's own errors as they are
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error) throw (Error) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new Error(cause);
+            }
+        }
+        return ret;
+    }
+}
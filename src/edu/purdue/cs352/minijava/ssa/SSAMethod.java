@@ -10,6 +10,9 @@ public class SSAMethod {
     MethodDecl method;
     List<SSAStatement> body;
 
+    // built on demand from the body, and dropped when it's replaced
+    ControlFlowGraph cfg;
+
     StaticType retType;
     List<StaticType> paramTypes;
 
@@ -17,6 +20,7 @@ public class SSAMethod {
         this.main = main;
         this.method = method;
         this.body = body;
+        number();
     }
 
     public SSAMethod(Main main, List<SSAStatement> body) {
@@ -30,7 +34,33 @@ public class SSAMethod {
     public Main getMain() { return main; }
     public MethodDecl getMethod() { return method; }
     public List<SSAStatement> getBody() { return body; }
-    public void setBody(List<SSAStatement> to) { body = to; }
+    public void setBody(List<SSAStatement> to) {
+        body = to;
+        cfg = null;
+        number();
+    }
+
+    public ControlFlowGraph getCFG() {
+        if (cfg == null)
+            cfg = new ControlFlowGraph(body);
+        return cfg;
+    }
+
+    /* Number the statements of the body in order, so that the numbering only
+     * depends on this method. Statements which already have a number (e.g.
+     * when the register allocator adds spill code) keep it, and new ones are
+     * numbered after the highest. */
+    private void number() {
+        int next = 0;
+        for (SSAStatement s : body) {
+            if (s.index >= next)
+                next = s.index + 1;
+        }
+        for (SSAStatement s : body) {
+            if (s.index < 0)
+                s.index = next++;
+        }
+    }
     public void setRetType(StaticType retType) { this.retType = retType; }
     public StaticType getRetType() { return retType; }
     public void setParamTypes(List<StaticType> paramTypes) { this.paramTypes = paramTypes; }
@@ -56,8 +56,8 @@ public class SSAStatement {
         Mul, Div, Mod,
     }
 
-    // since the indices are just for debugging, we don't care about thread safety here
-    static int NextIndex = 0;
+    // the indices are just for debugging; they're numbered per method by
+    // SSAMethod, and are -1 until then
     int index;
 
     // for debugging
@@ -82,7 +82,7 @@ public class SSAStatement {
     Object special;
 
     public SSAStatement(ASTNode ast, Op op, SSAStatement left, SSAStatement right, Object special) {
-        this.index = NextIndex++;
+        this.index = -1;
         this.ast = ast;
         this.register = -1;
         this.op = op;